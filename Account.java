@@ -1,24 +1,43 @@
-import java.text.DecimalFormat;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
 
 /**
  * Represents a bank account with transaction history
+ *
+ * Neither the balance nor the history is thread-safe on its own:
+ * BankingService serializes postings to an account under its stripe lock,
+ * which also keeps the history and journal in balance order. A withdrawal
+ * checks and subtracts under that lock, so it can never overdraw the
+ * account. The balance is volatile so lookups can read it without the lock.
+ *
+ * An account marked hot takes credits into striped cells instead (see
+ * HotBalance). Its balance field then only holds the folded part; use
+ * getBalance() for the full amount.
  */
 public class Account {
-    private static final DecimalFormat MONEY = new DecimalFormat("#,##0.00");
-    private static final DateTimeFormatter DT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-
     public String accountNumber;
     public String name;
-    public String pin;
-    public double balance;
+    public volatile String pin;
+    public volatile long balance; // paise
     public String phoneNumber;
-    public List<String> transactions = new ArrayList<>();
     public AccountType accountType;
 
+    // history held by this account, or where it lives on disk; both swapped
+    // in one write so unlocked readers never see half of a change
+    private volatile History history = new History(new TransactionHistory(), null);
+    private final MonthlyStats monthlyStats = new MonthlyStats();
+    private volatile HotBalance hot;
+    private int historyVersion; // bumped on every new entry
+
+    // journal sequence number this account was captured at in the loaded
+    // snapshot; replay skips records at or below it
+    long snapshotSeq;
+
+    // set once AccountTable has moved this account off the heap, after which
+    // this object is a stale copy; postings look the account up again
+    volatile boolean parked;
+    boolean referenced; // looked up since AccountTable.evict last passed it
+
     public enum AccountType {
         SAVINGS("Savings Account", 0.02),
         CHECKING("Checking Account", 0.0);
@@ -35,22 +54,33 @@ public class Account {
         public double getInterestRate() { return interestRate; }
     }
 
-    public Account(String accountNumber, String name, String pin, double balance) {
+    public Account(String accountNumber, String name, String pin, long balance) {
         this(accountNumber, name, pin, balance, AccountType.SAVINGS);
     }
 
-    public Account(String accountNumber, String name, String pin, double balance, AccountType accountType) {
+    public Account(String accountNumber, String name, String pin, long balance, AccountType accountType) {
         this(accountNumber, name, "", pin, balance, accountType);
     }
 
-    public Account(String accountNumber, String name, String phoneNumber, String pin, double balance, AccountType accountType) {
+    public Account(String accountNumber, String name, String phoneNumber, String pin, long balance, AccountType accountType) {
+        this(accountNumber, name, phoneNumber, pin, balance, accountType, true);
+    }
+
+    private Account(String accountNumber, String name, String phoneNumber, String pin, long balance, AccountType accountType, boolean opened) {
         this.accountNumber = accountNumber;
         this.name = name;
         this.phoneNumber = phoneNumber;
         this.pin = pin;
         this.balance = balance;
         this.accountType = accountType;
-        addTransaction("Account opened - " + accountType.getDisplayName());
+        if (opened) addTransaction(Transaction.Type.OPENED, 0, accountType.getDisplayName(), "");
+    }
+
+    /**
+     * Rebuilds a stored account with an empty history, for the caller to fill in.
+     */
+    public static Account restore(String accountNumber, String name, String phoneNumber, String pin, long balance, AccountType accountType) {
+        return new Account(accountNumber, name, phoneNumber, pin, balance, accountType, false);
     }
 
     public void addTransaction(String desc) {
@@ -58,17 +88,97 @@ public class Account {
     }
 
     public void addTransaction(String desc, String reason) {
-        String t = DT.format(LocalDateTime.now()) + " - " + desc;
-        if (!reason.isEmpty()) {
-            t += " (" + reason + ")";
+        addTransaction(Transaction.Type.OTHER, 0, desc, reason);
+    }
+
+    /**
+     * Records a history entry stamped with the current time and balance.
+     */
+    public void addTransaction(Transaction.Type type, long amount, String counterparty, String reason) {
+        addTransaction(type, amount, counterparty, reason, getBalance());
+    }
+
+    private void addTransaction(Transaction.Type type, long amount, String counterparty, String reason, long newBalance) {
+        restoreTransaction(new Transaction(System.currentTimeMillis(), type, amount, counterparty, reason, newBalance));
+    }
+
+    /**
+     * Puts an existing history entry back at the front, used when replaying
+     * the journal.
+     */
+    public void restoreTransaction(Transaction t) {
+        // most recent first; the ring buffer drops the oldest past its capacity
+        modifiableTransactions().push(t);
+        monthlyStats.record(t);
+        historyVersion++;
+    }
+
+    public MonthlyStats getMonthlyStats() {
+        return monthlyStats;
+    }
+
+    /**
+     * Transaction history, most recent first, loaded from disk on first use.
+     */
+    public List<Transaction> getTransactions() {
+        HotBalance h = hot;
+        // show queued credits if no posting is holding the account right now
+        if (h != null && h.hasPending() && h.lock.writeLock().tryLock()) {
+            try {
+                fold();
+            } finally {
+                h.lock.writeLock().unlock();
+            }
         }
-        t += " - Bal: ₹" + MONEY.format(balance);
-        transactions.add(0, t); // add to front (most recent first)
-        // trim history to 200 records to avoid huge file
-        if (transactions.size() > 200) transactions = transactions.subList(0, 200);
+        History current = history;
+        if (current.held != null) return current.held;
+        return StoredHistory.load(this, current.stored);
+    }
+
+    public int getTransactionCount() {
+        History current = history;
+        if (current.held != null) return current.held.size();
+        return current.stored.count;
+    }
+
+    // history about to change: take a private copy out of the shared cache
+    private TransactionHistory modifiableTransactions() {
+        History current = history;
+        if (current.held != null) return current.held;
+        TransactionHistory held = new TransactionHistory(StoredHistory.load(this, current.stored));
+        history = new History(held, null);
+        StoredHistory.evict(this);
+        return held;
+    }
+
+    /**
+     * Points the account at its history in a freshly written snapshot. The
+     * in-memory copy, if any, moves to the shared cache and may be dropped.
+     */
+    public void attachHistory(StoredHistory stored) {
+        TransactionHistory held = history.held;
+        if (held != null && held.size() == stored.count) StoredHistory.cache(this, held);
+        history = new History(null, stored);
+    }
+
+    /**
+     * Changes whenever an entry is added, so a snapshot can tell whether the
+     * history it wrote is still the current one.
+     */
+    int historyVersion() {
+        return historyVersion;
+    }
+
+    /**
+     * Where the unmodified history lives on disk, or null if it is held in memory.
+     */
+    StoredHistory getStoredHistory() {
+        History current = history;
+        return current.held == null ? current.stored : null;
     }
 
     public String getRecentTransactionsText() {
+        List<Transaction> transactions = getTransactions();
         StringBuilder sb = new StringBuilder();
         int n = Math.min(transactions.size(), 8);
         for (int i = 0; i < n; i++) sb.append(transactions.get(i)).append("\n");
@@ -77,46 +187,158 @@ public class Account {
     }
 
     public String getAllTransactionsText() {
+        List<Transaction> transactions = getTransactions();
         if (transactions.isEmpty()) return "No transactions.";
         StringBuilder sb = new StringBuilder();
-        for (String s : transactions) sb.append(s).append("\n");
+        for (Transaction s : transactions) sb.append(s).append("\n");
         return sb.toString();
     }
 
-    public boolean canWithdraw(double amount) {
-        return balance >= amount;
+    // exactly one of the two is set
+    private static final class History {
+        final TransactionHistory held;
+        final StoredHistory stored;
+
+        History(TransactionHistory held, StoredHistory stored) {
+            this.held = held;
+            this.stored = stored;
+        }
+    }
+
+    /**
+     * Balance in paise including credits not yet folded into a hot account.
+     */
+    public long getBalance() {
+        HotBalance h = hot;
+        if (h == null) return balance;
+        while (true) {
+            int stamp = h.stamp();
+            if ((stamp & 1) == 0) {
+                long total = balance + h.pending();
+                if (h.stamp() == stamp) return total;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    public boolean isHot() {
+        return hot != null;
+    }
+
+    /**
+     * Switches hot mode on or off. The caller must have the account to itself.
+     */
+    public void setHot(boolean on) {
+        if (on == (hot != null)) return;
+        if (on) {
+            hot = new HotBalance();
+        } else {
+            fold();
+            hot = null;
+        }
+    }
+
+    /**
+     * Lock guarding the credit cells of a hot account, null otherwise. Credits
+     * take the read side; anything that folds takes the write side.
+     */
+    ReadWriteLock hotLock() {
+        HotBalance h = hot;
+        return h == null ? null : h.lock;
     }
 
-    public void deposit(double amount) {
+    /**
+     * Moves queued credits of a hot account into the balance and history,
+     * stamping each entry with the balance it brings the account to in the
+     * order they were queued. Called with the write side of hotLock() held.
+     */
+    void fold() {
+        HotBalance h = hot;
+        if (h == null || !h.hasPending()) return;
+        h.beginFold();
+        try {
+            long newBalance = balance;
+            Transaction t;
+            while ((t = h.pollEntry()) != null) {
+                newBalance += t.amount;
+                restoreTransaction(t.withBalance(newBalance));
+            }
+            balance += h.drainCredits();
+        } finally {
+            h.endFold();
+        }
+    }
+
+    /**
+     * Whether the balance covers the amount right now. Only a hint unless the
+     * caller holds the account; withdraw() does its own check.
+     */
+    public boolean canWithdraw(long amount) {
+        return getBalance() >= amount;
+    }
+
+    /**
+     * Adds to the balance and records the entry, returning it. On a hot
+     * account both are queued in the cells until the next fold, and the
+     * entry's balance is only filled in then; the one returned has none.
+     */
+    Transaction credit(Transaction.Type type, long amount, String counterparty, String reason) {
+        HotBalance h = hot;
+        if (h != null) {
+            return h.add(new Transaction(System.currentTimeMillis(), type, amount, counterparty, reason, 0));
+        }
+        long newBalance = balance + amount;
+        balance = newBalance;
+        Transaction t = new Transaction(System.currentTimeMillis(), type, amount, counterparty, reason, newBalance);
+        restoreTransaction(t);
+        return t;
+    }
+
+    // checks and subtracts in one step, returning the new balance, or -1 if
+    // the balance does not cover the amount
+    private long debit(long amount) {
+        fold();
+        long current = balance;
+        if (current < amount) return -1;
+        balance = current - amount;
+        return current - amount;
+    }
+
+    public void deposit(long amount) {
         deposit(amount, "");
     }
 
-    public void deposit(double amount, String reason) {
-        balance += amount;
-        addTransaction("Deposit ₹" + MONEY.format(amount), reason);
+    public void deposit(long amount, String reason) {
+        credit(Transaction.Type.DEPOSIT, amount, "", reason);
     }
 
-    public boolean withdraw(double amount) {
+    public boolean withdraw(long amount) {
         return withdraw(amount, "");
     }
 
-    public boolean withdraw(double amount, String reason) {
-        if (!canWithdraw(amount)) return false;
-        balance -= amount;
-        addTransaction("Withdraw ₹" + MONEY.format(amount), reason);
+    public boolean withdraw(long amount, String reason) {
+        long newBalance = debit(amount);
+        if (newBalance < 0) return false;
+        addTransaction(Transaction.Type.WITHDRAW, amount, "", reason, newBalance);
         return true;
     }
 
-    public boolean transferTo(Account target, double amount) {
+    public boolean transferTo(Account target, long amount) {
         return transferTo(target, amount, "");
     }
 
-    public boolean transferTo(Account target, double amount, String reason) {
-        if (!canWithdraw(amount)) return false;
-        balance -= amount;
-        target.balance += amount;
-        addTransaction("Transfer to " + target.accountNumber + " ₹" + MONEY.format(amount), reason);
-        target.addTransaction("Transfer from " + accountNumber + " ₹" + MONEY.format(amount), reason);
-        return true;
+    public boolean transferTo(Account target, long amount, String reason) {
+        return send(target, amount, reason) != null;
+    }
+
+    /**
+     * Transfers to target, returning the entry recorded on the target, or
+     * null if the balance does not cover the amount.
+     */
+    Transaction send(Account target, long amount, String reason) {
+        long newBalance = debit(amount);
+        if (newBalance < 0) return null;
+        addTransaction(Transaction.Type.TRANSFER_OUT, amount, target.accountNumber, reason, newBalance);
+        return target.credit(Transaction.Type.TRANSFER_IN, amount, accountNumber, reason);
     }
 }
\ No newline at end of file
@@ -0,0 +1,634 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Binary storage format for accounts.db
+ *
+ * Layout: magic "BNKD", format version, snapshot generation, account count,
+ * the offset of the header section, the highest journal sequence number
+ * the snapshot may contain and a shard count. Transaction histories come first,
+ * then one fixed-order header per account pointing at its history, so a load
+ * reads only the headers and each history is fetched when it is first needed.
+ * Strings are an unsigned 16-bit length followed by UTF-8 bytes, so no field
+ * needs escaping:
+ *
+ *   header:  accountNumber name phoneNumber pin type:byte balance:long (paise)
+ *            monthlyStats txCount:int historyOffset:long historyLength:int
+ *            seq:long (journal position the account was captured at)
+ *   history: tx*   (see Transaction.encode)
+ *
+ * A snapshot can be written while postings continue: each account is copied
+ * under the caller's Guard and stamped with the journal position at that
+ * moment, so replay knows which journal records it already holds.
+ *
+ * A large store can be split by account number across shard files, named
+ * accounts.db.<generation>.<shard> and each laid out as above. accounts.db
+ * then holds no accounts, only the shard count, and is written last, so it
+ * is what commits a new set of shards. Shards are written and loaded in
+ * parallel, one worker per shard up to the number of cores.
+ *
+ * An open AccountFile keeps its channel for those history reads until closed.
+ * Files in the old pipe-separated text format are still readable and can be
+ * converted once with: java AccountFile [accounts.db]
+ * An existing store is split into n shards (1 to merge it back) with:
+ *   java AccountFile reshard <n> [data directory]
+ */
+public class AccountFile {
+    public static final int MAGIC = 0x424E4B44; // "BNKD"
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 40;
+    private static final int COUNT_POS = 16;
+    private static final int PATCH_SIZE = 20; // count, header offset, sequence number
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final Account.AccountType[] TYPES = Account.AccountType.values();
+
+    private final File file;
+    private final FileChannel channel; // null for a text file
+    private long generation;
+    private long seq;
+    private final List<AccountFile> shards = new ArrayList<>(); // empty unless sharded
+
+    /**
+     * Holds an account still while a snapshot copies it.
+     */
+    public interface Guard {
+        void lock(Account a);
+
+        void unlock(Account a);
+
+        /**
+         * Current journal position; read with the account locked.
+         */
+        long seq();
+
+        /**
+         * The account to copy, asked with it locked. A parked view (see
+         * AccountTable) gives way to the account if it was installed since.
+         */
+        default Account current(Account a) {
+            return a;
+        }
+
+        /**
+         * Points an account that was copied as a parked view at its history
+         * in the new file, unless it has changed since; takes its own locks.
+         */
+        default void relocate(String accountNumber, StoredHistory stored) { }
+    }
+
+    private AccountFile(File file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+        if (channel != null) StoredHistory.register(channel);
+    }
+
+    /**
+     * Returns true when the file starts with the binary header.
+     */
+    public static boolean isBinary(File file) throws IOException {
+        if (file.length() < 8) return false;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Opens an existing binary or legacy text store.
+     */
+    public static AccountFile open(File file) throws IOException {
+        if (!isBinary(file)) return new AccountFile(file, null);
+        return new AccountFile(file, FileChannel.open(file.toPath(), StandardOpenOption.READ));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Number of shard files the accounts are split across, 1 when unsharded.
+     */
+    public int getShards() {
+        return Math.max(1, shards.size());
+    }
+
+    /**
+     * Bytes on disk, shard files included.
+     */
+    public long length() {
+        long length = file.length();
+        for (AccountFile shard : shards) length += shard.length();
+        return length;
+    }
+
+    public boolean isLegacy() {
+        return channel == null;
+    }
+
+    /**
+     * Snapshot generation, known once the accounts have been read.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Highest journal sequence number the snapshot may contain, 0 for a text file.
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Reads every account header into the map, in file order. Histories stay
+     * on disk except for text files, which are read in full.
+     */
+    public void readAccounts(Map<String, Account> accounts) throws IOException {
+        if (channel == null) {
+            readText(file, accounts);
+            return;
+        }
+        Input in = new Input(channel, 0);
+        in.readInt(); // magic
+        int version = in.readInt();
+        if (version != VERSION) throw new IOException("Unsupported accounts.db version " + version);
+        generation = in.readLong();
+        int count = in.readInt();
+        long headerOffset = in.readLong();
+        seq = in.readLong();
+        int shardCount = in.readInt();
+        if (shardCount > 0) {
+            readShards(shardCount, accounts);
+            return;
+        }
+        in = new Input(channel, headerOffset);
+        for (int i = 0; i < count; i++) {
+            Account a = readHeader(in);
+            a.getMonthlyStats().read(in);
+            int txCount = in.readInt();
+            long offset = in.readLong();
+            int length = in.readInt();
+            a.snapshotSeq = in.readLong();
+            a.attachHistory(new StoredHistory(channel, offset, length, txCount));
+            accounts.put(a.accountNumber, a);
+        }
+    }
+
+    // each shard read on its own worker, straight into the caller's map when
+    // that is safe to share, otherwise into its own and merged after
+    private void readShards(int count, Map<String, Account> accounts) throws IOException {
+        boolean shared = accounts instanceof AccountTable || accounts instanceof ConcurrentMap;
+        List<Callable<Map<String, Account>>> tasks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            AccountFile shard = open(shardFile(file, generation, i));
+            shards.add(shard);
+            tasks.add(() -> {
+                Map<String, Account> part = shared ? accounts : new HashMap<>();
+                shard.readAccounts(part);
+                return part;
+            });
+        }
+        List<Map<String, Account>> parts = runAll(tasks);
+        if (!shared) for (Map<String, Account> part : parts) accounts.putAll(part);
+    }
+
+    static File shardFile(File file, long generation, int shard) {
+        return new File(file.getAbsolutePath() + "." + generation + "." + shard);
+    }
+
+    static int shardOf(String accountNumber, int shards) {
+        int h = accountNumber.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), shards);
+    }
+
+    // runs the tasks on up to one thread per core, in order of the results
+    private static <T> List<T> runAll(List<Callable<T>> tasks) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(tasks.size(), Runtime.getRuntime().availableProcessors())));
+        try {
+            List<T> results = new ArrayList<>();
+            for (Future<T> f : pool.invokeAll(tasks)) results.add(f.get());
+            return results;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading or writing shards");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // text files carry no totals; recover what the history still holds
+    private static void rebuildMonthlyStats(Account a) {
+        List<Transaction> txs = a.getTransactions();
+        for (int i = txs.size() - 1; i >= 0; i--) a.getMonthlyStats().record(txs.get(i));
+    }
+
+    private static Account readHeader(Input in) throws IOException {
+        String acc = in.readString();
+        String name = in.readString();
+        String phoneNumber = in.readString();
+        String pin = in.readString();
+        int type = in.readByte();
+        long bal = in.readLong();
+        return Account.restore(acc, name, phoneNumber, pin, bal,
+                type >= 0 && type < TYPES.length ? TYPES[type] : Account.AccountType.SAVINGS);
+    }
+
+    /**
+     * Writes the accounts to a temp file, forces it and moves it over the
+     * target. Histories that were never loaded are copied across as raw bytes.
+     * Returns the new file opened for reading, with every account attached to
+     * its history in it; the caller closes the previous AccountFile.
+     */
+    public static AccountFile write(File file, long generation, Collection<Account> accounts) throws IOException {
+        return write(file, generation, accounts, null);
+    }
+
+    /**
+     * As above, but each account is copied while the guard holds it, so
+     * postings may go on meanwhile. Headers are collected in a side file and
+     * appended after the histories. An account that changes before the file
+     * is in place keeps its history in memory instead of being attached.
+     * Parked views are not kept; the guard relocates them by number.
+     */
+    public static AccountFile write(File file, long generation, Collection<Account> accounts, Guard guard) throws IOException {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        File headerTmp = new File(file.getAbsolutePath() + ".hdr.tmp");
+        int capacity = Math.max(16, accounts.size());
+        Account[] written = new Account[capacity];
+        long[] offsets = new long[capacity];
+        int[] lengths = new int[capacity];
+        int[] counts = new int[capacity];
+        int[] versions = new int[capacity];
+        long[] parked = new long[capacity]; // number of a parked view, else 0
+        int n = 0;
+        long seq;
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             FileChannel hch = FileChannel.open(headerTmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output out = new Output(ch);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeInt(0);  // count, patched below
+            out.writeLong(0); // header offset, patched below
+            out.writeLong(0); // sequence number, patched below
+            out.writeInt(0);  // not sharded
+
+            Output headers = new Output(hch);
+            for (Account a : accounts) {
+                if (n == written.length) {
+                    capacity = n * 2;
+                    written = Arrays.copyOf(written, capacity);
+                    offsets = Arrays.copyOf(offsets, capacity);
+                    lengths = Arrays.copyOf(lengths, capacity);
+                    counts = Arrays.copyOf(counts, capacity);
+                    versions = Arrays.copyOf(versions, capacity);
+                    parked = Arrays.copyOf(parked, capacity);
+                }
+                Account held = a;
+                if (guard != null) guard.lock(held);
+                try {
+                    if (guard != null) a = guard.current(a);
+                    offsets[n] = out.position();
+                    StoredHistory stored = a.getStoredHistory();
+                    if (stored != null) {
+                        out.write(stored.readBytes());
+                        counts[n] = stored.count;
+                    } else {
+                        List<Transaction> txs = a.getTransactions();
+                        for (Transaction t : txs) out.write(t.encode());
+                        counts[n] = txs.size();
+                    }
+                    lengths[n] = (int) (out.position() - offsets[n]);
+                    versions[n] = a.historyVersion();
+
+                    headers.writeString(a.accountNumber);
+                    headers.writeString(a.name);
+                    headers.writeString(a.phoneNumber);
+                    headers.writeString(a.pin);
+                    headers.writeByte(a.accountType.ordinal());
+                    headers.writeLong(a.balance);
+                    a.getMonthlyStats().write(headers);
+                    headers.writeInt(counts[n]);
+                    headers.writeLong(offsets[n]);
+                    headers.writeInt(lengths[n]);
+                    headers.writeLong(guard == null ? 0 : guard.seq());
+                } finally {
+                    if (guard != null) guard.unlock(held);
+                }
+                if (a.parked) parked[n++] = Long.parseLong(a.accountNumber);
+                else written[n++] = a;
+            }
+            seq = guard == null ? 0 : guard.seq();
+
+            out.flush();
+            headers.flush();
+            long headerOffset = out.position();
+            long size = hch.size();
+            for (long done = 0; done < size; ) done += hch.transferTo(done, size - done, ch);
+            ByteBuffer patch = ByteBuffer.allocate(PATCH_SIZE)
+                    .putInt(n).putLong(headerOffset).putLong(seq);
+            patch.flip();
+            while (patch.hasRemaining()) ch.write(patch, COUNT_POS + patch.position());
+            ch.force(false);
+        } finally {
+            headerTmp.delete();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        AccountFile opened = open(file);
+        opened.generation = generation;
+        opened.seq = seq;
+        for (int i = 0; i < n; i++) {
+            Account a = written[i];
+            StoredHistory stored = new StoredHistory(opened.channel, offsets[i], lengths[i], counts[i]);
+            if (a == null) {
+                if (guard != null) guard.relocate(Long.toString(parked[i]), stored);
+                continue;
+            }
+            if (guard != null) guard.lock(a);
+            try {
+                if (a.historyVersion() == versions[i]) a.attachHistory(stored);
+            } finally {
+                if (guard != null) guard.unlock(a);
+            }
+        }
+        return opened;
+    }
+
+    /**
+     * As above, split across the given number of shard files written in
+     * parallel. accounts.db is replaced last, and shard files of other
+     * generations are deleted once it is.
+     */
+    public static AccountFile write(File file, long generation, Collection<Account> accounts, Guard guard,
+                                    int shardCount) throws IOException {
+        if (shardCount <= 1) {
+            AccountFile written = write(file, generation, accounts, guard);
+            deleteShards(file, -1);
+            return written;
+        }
+        // a table is split by key, so parked accounts are only decoded by their own shard
+        AccountTable.Values table = accounts instanceof AccountTable.Values ? (AccountTable.Values) accounts : null;
+        List<List<Account>> parts = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) parts.add(new ArrayList<>());
+        if (table == null) for (Account a : accounts) parts.get(shardOf(a.accountNumber, shardCount)).add(a);
+        List<Callable<AccountFile>> tasks = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            File shard = shardFile(file, generation, i);
+            int s = i;
+            Collection<Account> part = table != null ? table.where(n -> shardOf(n, shardCount) == s) : parts.get(i);
+            tasks.add(() -> write(shard, generation, part, guard));
+        }
+        List<AccountFile> written = runAll(tasks);
+        long seq = 0;
+        for (AccountFile shard : written) seq = Math.max(seq, shard.seq);
+
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION)
+                    .putLong(generation).putInt(0).putLong(HEADER_SIZE).putLong(seq).putInt(shardCount);
+            header.flip();
+            while (header.hasRemaining()) ch.write(header);
+            ch.force(false);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deleteShards(file, generation);
+
+        AccountFile opened = open(file);
+        opened.generation = generation;
+        opened.seq = seq;
+        opened.shards.addAll(written);
+        return opened;
+    }
+
+    // shard files of the store except those of the given generation
+    private static void deleteShards(File file, long keep) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        String prefix = file.getName() + ".";
+        File[] stale = dir.listFiles((d, name) -> name.startsWith(prefix) && !name.endsWith(".tmp")
+                && !name.startsWith(prefix + keep + "."));
+        if (stale == null) return;
+        for (File f : stale) {
+            if (!f.delete()) System.err.println("Failed to delete " + f);
+        }
+    }
+
+    static String getString(ByteBuffer buf) {
+        int len = buf.getShort() & 0xFFFF;
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+        buf.position(buf.position() + len);
+        return s;
+    }
+
+    static void putString(DataOutput out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        if (b.length > 0xFFFF) throw new IOException("String too long to store: " + b.length + " bytes");
+        out.writeShort(b.length);
+        out.write(b);
+    }
+
+    public void close() {
+        for (AccountFile shard : shards) shard.close();
+        if (channel == null) return;
+        StoredHistory.unregister(channel);
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            System.err.println("Failed to close " + file + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Sequential reader over a file channel through one reusable buffer.
+     */
+    static class Input {
+        private final FileChannel ch;
+        private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+
+        private long pos;
+
+        Input(FileChannel ch, long pos) {
+            this.ch = ch;
+            this.pos = pos;
+            buf.limit(0);
+        }
+
+        private void require(int n) throws IOException {
+            if (buf.remaining() >= n) return;
+            buf.compact();
+            while (buf.position() < n) {
+                int r = ch.read(buf, pos);
+                if (r < 0) throw new EOFException();
+                pos += r;
+            }
+            buf.flip();
+        }
+
+        byte readByte() throws IOException { require(1); return buf.get(); }
+        int readInt() throws IOException { require(4); return buf.getInt(); }
+        long readLong() throws IOException { require(8); return buf.getLong(); }
+
+        String readString() throws IOException {
+            require(2);
+            int len = buf.getShort() & 0xFFFF;
+            require(len);
+            String s = new String(buf.array(), buf.position(), len, StandardCharsets.UTF_8);
+            buf.position(buf.position() + len);
+            return s;
+        }
+    }
+
+    /**
+     * Sequential writer to a file channel through one reusable buffer.
+     */
+    static class Output {
+        private final FileChannel ch;
+        private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        private long flushed;
+
+        Output(FileChannel ch) {
+            this.ch = ch;
+        }
+
+        long position() {
+            return flushed + buf.position();
+        }
+
+        private void require(int n) throws IOException {
+            if (buf.remaining() < n) flush();
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) flushed += ch.write(buf);
+            buf.clear();
+        }
+
+        void writeByte(int v) throws IOException { require(1); buf.put((byte) v); }
+        void writeInt(int v) throws IOException { require(4); buf.putInt(v); }
+        void writeLong(long v) throws IOException { require(8); buf.putLong(v); }
+
+        void write(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                if (!buf.hasRemaining()) flush();
+                int n = Math.min(buf.remaining(), src.remaining());
+                buf.put(src.array(), src.arrayOffset() + src.position(), n);
+                src.position(src.position() + n);
+            }
+        }
+
+        void writeString(String s) throws IOException {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            if (b.length > 0xFFFF) throw new IOException("String too long to store: " + b.length + " bytes");
+            require(2 + b.length);
+            buf.putShort((short) b.length).put(b);
+        }
+    }
+
+    // accountNumber|name|phoneNumber|pin|balance|accountType|tx1;;tx2;;tx3
+    private static void readText(File file, Map<String, Account> accounts) throws IOException {
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                String[] parts = line.split("\\|", 7);
+                if (parts.length < 6) continue;
+                String acc = parts[0];
+                String name = unescape(parts[1]);
+                String phoneNumber = unescape(parts[2]);
+                String pin = parts[3];
+                long bal = 0;
+                try { bal = Money.ofRupees(Double.parseDouble(parts[4])); } catch (Exception ignored) {}
+                Account.AccountType accountType = Account.AccountType.SAVINGS;
+                try { accountType = Account.AccountType.valueOf(parts[5]); } catch (Exception ignored) {}
+                String txs = parts.length >= 7 ? parts[6] : "";
+                Account a = Account.restore(acc, name, phoneNumber, pin, bal, accountType);
+                if (!txs.isEmpty()) {
+                    String[] t = txs.split(";;");
+                    List<Transaction> history = a.getTransactions();
+                    for (String s : t) if (!s.isEmpty()) history.add(Transaction.parse(unescape(s)));
+                }
+                rebuildMonthlyStats(a);
+                accounts.put(acc, a);
+            }
+        }
+    }
+
+    private static String unescape(String s) {
+        return s.replace("%PIPE%", "|").replace("%SEMI2%", ";;");
+    }
+
+    /**
+     * One-shot migration of a text accounts.db to the binary format, in place.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("reshard")) {
+            reshard(args);
+            return;
+        }
+        File file = new File(args.length > 0 ? args[0] : "accounts.db");
+        if (!file.exists()) {
+            System.err.println("No such file: " + file);
+            return;
+        }
+        if (isBinary(file)) {
+            System.out.println(file + " is already in binary format.");
+            return;
+        }
+        long before = file.length();
+        Map<String, Account> accounts = new LinkedHashMap<>();
+        readText(file, accounts);
+        write(file, 0, accounts.values()).close();
+        System.out.println("Migrated " + accounts.size() + " accounts: " + before + " -> " + file.length() + " bytes");
+    }
+
+    private static void reshard(String[] args) {
+        int n;
+        try {
+            n = Integer.parseInt(args[1]);
+        } catch (RuntimeException ex) {
+            System.err.println("Usage: java AccountFile reshard <shards> [data directory]");
+            return;
+        }
+        if (n < 1) {
+            System.err.println("Shard count must be at least 1");
+            return;
+        }
+        File dir = new File(args.length > 2 ? args[2] : System.getProperty("bank.dataDir", "."));
+        BankingService service = new BankingService(dir);
+        int before = service.getShards();
+        service.reshard(n);
+        service.close();
+        System.out.println("Resharded " + service.getAccountCount() + " accounts in " + dir + ": "
+                + before + " -> " + n + " shards");
+    }
+}
@@ -0,0 +1,618 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Account index keyed by account number
+ *
+ * Account numbers are handed out upwards from 1001, so the table is a dense
+ * array of pages indexed by number - 1001: a lookup parses the digits and
+ * indexes straight in, with no hashing and no allocation, and an entry costs
+ * one array slot. Keys that are not plain decimal numbers in range (an older
+ * store may hold any string) live in a hash map on the side.
+ *
+ * Given an OffHeapAccounts, accounts can also be parked: their header moves
+ * to a record outside the heap and the slot keeps only its address. A lookup
+ * of a parked account decodes it and installs the result, so from then on
+ * everyone gets that object until it is parked again. Parking marks the old
+ * object (Account.parked); it must not be changed after that. Installing,
+ * parking, replacing and relocating a slot's account take a lock striped by
+ * slot, so a decode is never installed over a newer record or one pointing
+ * at history that has since moved; lookups of installed accounts take none.
+ * Iteration
+ * returns parked accounts as views decoded on the fly, also marked parked,
+ * without installing them.
+ *
+ * The installed accounts then form a cache in front of the parked ones.
+ * The table counts hits and misses, calls an overflow listener once more
+ * than a given number are installed, and evict() picks accounts to park
+ * by CLOCK: in the order they were installed, passing over once those
+ * looked up since they were last considered.
+ *
+ * Safe for concurrent use. Entries can be added and replaced but not
+ * removed. Iteration runs in account-number order, then over the side map.
+ */
+public class AccountTable extends AbstractMap<String, Account> {
+    public static final int FIRST_NUMBER = 1001;
+
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int MAX_INDEX = 1 << 28;
+    private static final VarHandle PAGE = MethodHandles.arrayElementVarHandle(Page[].class);
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Account[].class);
+    private static final VarHandle ADDRESS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final int LOCK_STRIPES = 256;
+
+    private final OffHeapAccounts offHeap; // null unless accounts can be parked
+    private volatile Page[] pages = new Page[16];
+    private final AtomicInteger size = new AtomicInteger();
+    private final Map<String, Account> other = new ConcurrentHashMap<>();
+    private volatile boolean parkOnPut;
+    // installed parkable accounts, oldest first; entries since parked or replaced are skipped
+    private final Queue<Account> clock = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger installedCount = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile int overflowAt = Integer.MAX_VALUE;
+    private volatile Runnable overflow;
+    private final Object[] locks; // by slot, when accounts can be parked
+
+    // installed accounts, and the addresses of off-heap records: positive for a
+    // parked account, negated once it is installed again (the record is then
+    // only room to park it into), 0 for none
+    private static final class Page {
+        final Account[] accounts = new Account[PAGE_SIZE];
+        final long[] addresses;
+
+        Page(boolean offHeap) {
+            addresses = offHeap ? new long[PAGE_SIZE] : null;
+        }
+    }
+
+    public AccountTable() {
+        this(null);
+    }
+
+    public AccountTable(OffHeapAccounts offHeap) {
+        this.offHeap = offHeap;
+        locks = new Object[offHeap == null ? 0 : LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+    }
+
+    /**
+     * Slot of a decimal account number without sign or leading zeros, or -1
+     * for any other key.
+     */
+    static int index(String key) {
+        int len = key.length();
+        if (len == 0 || len > 10 || (key.charAt(0) == '0' && len > 1)) return -1;
+        long n = 0;
+        for (int i = 0; i < len; i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            n = n * 10 + (c - '0');
+        }
+        return index(n);
+    }
+
+    static int index(long number) {
+        long i = number - FIRST_NUMBER;
+        return i >= 0 && i < MAX_INDEX ? (int) i : -1;
+    }
+
+    private static String key(int i) {
+        return Integer.toString(i + FIRST_NUMBER);
+    }
+
+    /**
+     * Looks an account up by its number.
+     */
+    public Account get(long number) {
+        int i = index(number);
+        if (i < 0) return other.get(Long.toString(number));
+        return slot(i, null);
+    }
+
+    @Override
+    public Account get(Object key) {
+        if (!(key instanceof String)) return null;
+        int i = index((String) key);
+        return i < 0 ? other.get(key) : slot(i, (String) key);
+    }
+
+    private Page existingPage(int i) {
+        Page[] p = pages;
+        int pi = i >>> PAGE_BITS;
+        return pi < p.length ? (Page) PAGE.getAcquire(p, pi) : null;
+    }
+
+    private Object lock(int i) {
+        return locks[i & (LOCK_STRIPES - 1)];
+    }
+
+    // the installed account, decoding and installing a parked one
+    private Account slot(int i, String key) {
+        Page page = existingPage(i);
+        if (page == null) return null;
+        int j = i & (PAGE_SIZE - 1);
+        Account a = (Account) SLOT.getAcquire(page.accounts, j);
+        if (page.addresses == null) return a;
+        if (a != null) {
+            if (!a.referenced) a.referenced = true;
+            hits.increment();
+            return a;
+        }
+        if ((long) ADDRESS.getAcquire(page.addresses, j) == 0) return null;
+        Account loaded;
+        synchronized (lock(i)) {
+            a = (Account) SLOT.getAcquire(page.accounts, j);
+            if (a != null) return a; // installed while this waited
+            long address = (long) ADDRESS.getAcquire(page.addresses, j);
+            if (address <= 0) return null;
+            loaded = offHeap.load(address, key != null ? key : key(i));
+            SLOT.setRelease(page.accounts, j, loaded);
+            ADDRESS.setRelease(page.addresses, j, -address); // kept as room to park into
+        }
+        misses.increment();
+        installed(loaded);
+        return loaded;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (!(key instanceof String)) return false;
+        int i = index((String) key);
+        if (i < 0) return other.containsKey(key);
+        Page page = existingPage(i);
+        return page != null && present(page, i & (PAGE_SIZE - 1));
+    }
+
+    private static boolean present(Page page, int j) {
+        return SLOT.getAcquire(page.accounts, j) != null
+                || (page.addresses != null && (long) ADDRESS.getAcquire(page.addresses, j) > 0);
+    }
+
+    /**
+     * Adds or replaces an account. While parkOnPut is set and the account's
+     * history is on disk, it is parked straight away.
+     */
+    @Override
+    public Account put(String key, Account account) {
+        int i = index(key);
+        if (i < 0) return other.put(key, account);
+        Page page = page(i);
+        int j = i & (PAGE_SIZE - 1);
+        if (page.addresses == null) {
+            Account old = (Account) SLOT.getAndSet(page.accounts, j, account);
+            if (old == null) size.incrementAndGet();
+            return old;
+        }
+        Account old;
+        boolean installed = false;
+        synchronized (lock(i)) {
+            if (!present(page, j)) size.incrementAndGet();
+            long address = (long) ADDRESS.getAcquire(page.addresses, j);
+            if (parkOnPut && account.getStoredHistory() != null) {
+                ADDRESS.setRelease(page.addresses, j, offHeap.store(account, Math.abs(address)));
+                account.parked = true;
+                old = (Account) SLOT.getAndSet(page.accounts, j, null);
+                if (old != null) installedCount.decrementAndGet();
+            } else {
+                old = (Account) SLOT.getAndSet(page.accounts, j, account);
+                if (address > 0) ADDRESS.setRelease(page.addresses, j, -address);
+                if (old == null) installed = true;
+                else clock.add(account);
+            }
+        }
+        if (installed) installed(account);
+        return old;
+    }
+
+    /**
+     * Whether put() parks the accounts it is given, used while loading.
+     */
+    public void setParkOnPut(boolean on) {
+        parkOnPut = on;
+    }
+
+    /**
+     * Moves the installed account's header off the heap and empties its slot.
+     * The caller holds the account still and makes sure its history is on
+     * disk. Returns false if the account cannot be parked: the table has no
+     * OffHeapAccounts, the key is not a dense account number, or the account
+     * is not the one installed.
+     */
+    public boolean park(Account account) {
+        int i = index(account.accountNumber);
+        if (offHeap == null || i < 0) return false;
+        Page page = existingPage(i);
+        if (page == null) return false;
+        int j = i & (PAGE_SIZE - 1);
+        synchronized (lock(i)) {
+            if (SLOT.getAcquire(page.accounts, j) != account) return false;
+            long address = (long) ADDRESS.getAcquire(page.addresses, j);
+            ADDRESS.setRelease(page.addresses, j, offHeap.store(account, Math.abs(address)));
+            account.parked = true;
+            SLOT.setRelease(page.accounts, j, null);
+        }
+        installedCount.decrementAndGet();
+        return true;
+    }
+
+    private void installed(Account a) {
+        clock.add(a);
+        Runnable listener = overflow;
+        if (installedCount.incrementAndGet() > overflowAt && listener != null) listener.run();
+    }
+
+    /**
+     * Has the listener called, on the installing thread, whenever an account
+     * is installed while more than max are.
+     */
+    public void onOverflow(int max, Runnable listener) {
+        overflow = listener;
+        overflowAt = max;
+    }
+
+    /**
+     * Offers installed accounts to park, in CLOCK order, until at most max
+     * remain installed or each has been offered once. park parks the
+     * account if it can and says whether it did. Returns the number parked.
+     */
+    public int evict(int max, Predicate<Account> park) {
+        int parked = 0;
+        for (int tries = installedCount.get() * 2; tries > 0 && installedCount.get() > max; tries--) {
+            Account a = clock.poll();
+            if (a == null) break;
+            if (a.parked || installed(a.accountNumber) != a) continue;
+            if (a.referenced) {
+                a.referenced = false;
+            } else if (park.test(a)) {
+                parked++;
+                continue;
+            }
+            clock.add(a);
+        }
+        return parked;
+    }
+
+    /**
+     * What forEachHeader() reads of each account.
+     */
+    public interface HeaderVisitor {
+        void visit(String accountNumber, String name, String phoneNumber, long balance);
+    }
+
+    /**
+     * Visits every account's number, name, phone number and balance,
+     * reading parked ones straight from their records instead of decoding
+     * them into views.
+     */
+    public void forEachHeader(HeaderVisitor visitor) {
+        for (Accounts it = new Accounts(null, true, false); it.hasNext(); ) {
+            Account a = it.next();
+            if (a != null) visitor.visit(a.accountNumber, a.name, a.phoneNumber, a.balance);
+            else offHeap.visit(it.address, it.key, visitor);
+        }
+    }
+
+    /**
+     * Number of installed accounts that could be parked, hot or changed ones included.
+     */
+    public int getInstalledCount() {
+        return installedCount.get();
+    }
+
+    /**
+     * Lookups that found the account installed, when accounts can be parked.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Lookups that had to decode a parked account.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * The installed account for a number, or null if it is parked or absent;
+     * never decodes anything.
+     */
+    public Account installed(String key) {
+        int i = index(key);
+        if (i < 0) return other.get(key);
+        Page page = existingPage(i);
+        return page == null ? null : (Account) SLOT.getAcquire(page.accounts, i & (PAGE_SIZE - 1));
+    }
+
+    /**
+     * The installed account for a number, or a view of a parked one (see
+     * the class comment) without installing it; null if absent.
+     */
+    public Account view(String key) {
+        int i = index(key);
+        if (i < 0) return other.get(key);
+        Page page = existingPage(i);
+        if (page == null) return null;
+        int j = i & (PAGE_SIZE - 1);
+        while (true) {
+            Account a = (Account) SLOT.getAcquire(page.accounts, j);
+            if (a != null || page.addresses == null) return a;
+            long address = (long) ADDRESS.getAcquire(page.addresses, j);
+            if (address == 0) return null;
+            if (address > 0) {
+                Account view = offHeap.load(address, key);
+                view.parked = true;
+                return view;
+            }
+            // installed since the slot was read
+        }
+    }
+
+    /**
+     * Points a parked account at its history in a new snapshot, or attaches
+     * an installed one that was parked when the snapshot copied it, if its
+     * history has not changed since. The caller holds the account still.
+     */
+    public void relocate(String key, StoredHistory stored) {
+        int i = index(key);
+        Page page = i < 0 ? null : existingPage(i);
+        if (page == null || page.addresses == null) return;
+        int j = i & (PAGE_SIZE - 1);
+        synchronized (lock(i)) {
+            Account a = (Account) SLOT.getAcquire(page.accounts, j);
+            if (a != null) {
+                // installed since: unchanged while its version is still that of a fresh decode
+                if (a.historyVersion() == 0 && a.getStoredHistory() != null) a.attachHistory(stored);
+                return;
+            }
+            long address = (long) ADDRESS.getAcquire(page.addresses, j);
+            if (address > 0) offHeap.relocate(address, stored);
+        }
+    }
+
+    // the page holding slot i, added under the table's lock the first time
+    private Page page(int i) {
+        int pi = i >>> PAGE_BITS;
+        Page[] p = pages;
+        Page page = pi < p.length ? (Page) PAGE.getAcquire(p, pi) : null;
+        if (page != null) return page;
+        synchronized (this) {
+            p = pages;
+            if (pi >= p.length) {
+                Page[] bigger = new Page[Math.max(p.length * 2, pi + 1)];
+                for (int j = 0; j < p.length; j++) bigger[j] = (Page) PAGE.getAcquire(p, j);
+                pages = p = bigger;
+            }
+            page = p[pi];
+            if (page == null) {
+                page = new Page(offHeap != null);
+                PAGE.setRelease(p, pi, page);
+            }
+            return page;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size.get() + other.size();
+    }
+
+    /**
+     * Every account, parked ones as views (see the class comment).
+     */
+    @Override
+    public Values values() {
+        return new Values(null, true);
+    }
+
+    /**
+     * Only the installed accounts, leaving parked ones alone.
+     */
+    public Values installedValues() {
+        return new Values(null, false);
+    }
+
+    /**
+     * Accounts as returned by values() or installedValues(), which can be
+     * narrowed by key without decoding the parked accounts left out.
+     */
+    public class Values extends AbstractCollection<Account> {
+        private final Predicate<String> keys;
+        private final boolean parked;
+
+        private Values(Predicate<String> keys, boolean parked) {
+            this.keys = keys;
+            this.parked = parked;
+        }
+
+        /**
+         * The accounts whose number passes the test.
+         */
+        public Values where(Predicate<String> test) {
+            return new Values(keys == null ? test : keys.and(test), parked);
+        }
+
+        @Override
+        public Iterator<Account> iterator() {
+            return new Accounts(keys, parked);
+        }
+
+        @Override
+        public int size() {
+            if (keys == null && parked) return AccountTable.this.size();
+            int n = 0;
+            for (Accounts it = new Accounts(keys, parked, false); it.hasNext(); it.next()) n++;
+            return n;
+        }
+    }
+
+    /**
+     * Account numbers, without decoding parked accounts.
+     */
+    @Override
+    public Set<String> keySet() {
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                Accounts accounts = new Accounts(null, true, false);
+                return new Iterator<String>() {
+                    @Override
+                    public boolean hasNext() {
+                        return accounts.hasNext();
+                    }
+
+                    @Override
+                    public String next() {
+                        accounts.next();
+                        return accounts.key;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return AccountTable.this.size();
+            }
+
+            @Override
+            public boolean contains(Object key) {
+                return containsKey(key);
+            }
+        };
+    }
+
+    @Override
+    public Set<Map.Entry<String, Account>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Account>>() {
+            @Override
+            public Iterator<Map.Entry<String, Account>> iterator() {
+                Accounts accounts = new Accounts(null, true);
+                return new Iterator<Map.Entry<String, Account>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return accounts.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, Account> next() {
+                        Account a = accounts.next();
+                        return new SimpleImmutableEntry<>(accounts.key, a);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return AccountTable.this.size();
+            }
+        };
+    }
+
+    // dense slots in order, then the side map; sees entries added meanwhile or not
+    private class Accounts implements Iterator<Account> {
+        private final Page[] p = pages;
+        private final Iterator<Map.Entry<String, Account>> rest = other.entrySet().iterator();
+        private final Predicate<String> keys;
+        private final boolean parked;
+        private final boolean decode;
+        private int next = -1;
+        private Map.Entry<String, Account> restEntry;
+        private Account found;
+        private String foundKey;
+        private long foundAddress;
+        String key; // of the account last returned
+        long address; // of its record, when returned parked without decoding
+
+        Accounts(Predicate<String> keys, boolean parked) {
+            this(keys, parked, true);
+        }
+
+        // without decode, next() returns null for parked accounts and only the key is set
+        Accounts(Predicate<String> keys, boolean parked, boolean decode) {
+            this.keys = keys;
+            this.parked = parked;
+            this.decode = decode;
+            advance();
+        }
+
+        private boolean wanted(String k) {
+            return keys == null || keys.test(k);
+        }
+
+        private void advance() {
+            found = null;
+            foundKey = null;
+            foundAddress = 0;
+            while (++next < p.length * PAGE_SIZE) {
+                Page page = (Page) PAGE.getAcquire(p, next >>> PAGE_BITS);
+                if (page == null) {
+                    next |= PAGE_SIZE - 1;
+                    continue;
+                }
+                int j = next & (PAGE_SIZE - 1);
+                Account a;
+                long address = 0;
+                do {
+                    a = (Account) SLOT.getAcquire(page.accounts, j);
+                    if (a != null || page.addresses == null) break;
+                    address = (long) ADDRESS.getAcquire(page.addresses, j);
+                } while (address < 0); // installed since the slot was read
+                if (a != null) {
+                    if (!wanted(a.accountNumber)) continue;
+                    found = a;
+                    foundKey = a.accountNumber;
+                    return;
+                }
+                if (!parked || address == 0) continue;
+                String k = key(next);
+                if (!wanted(k)) continue;
+                foundKey = k;
+                foundAddress = address;
+                if (decode) {
+                    found = offHeap.load(address, k);
+                    found.parked = true;
+                }
+                return;
+            }
+            next = p.length * PAGE_SIZE;
+            restEntry = rest.hasNext() ? rest.next() : null;
+            while (restEntry != null && !wanted(restEntry.getKey())) restEntry = rest.hasNext() ? rest.next() : null;
+            if (restEntry != null) {
+                found = restEntry.getValue();
+                foundKey = restEntry.getKey();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return foundKey != null;
+        }
+
+        @Override
+        public Account next() {
+            if (foundKey == null) throw new NoSuchElementException();
+            Account a = found;
+            key = foundKey;
+            address = foundAddress;
+            advance();
+            return a;
+        }
+    }
+}
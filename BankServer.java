@@ -0,0 +1,287 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local JSON-over-HTTP API in front of BankingService
+ *
+ *   java BankServer
+ *
+ * Listens on bank.http.host:bank.http.port (default 127.0.0.1:8080):
+ *
+ *   POST /api/authenticate               {"account":"1001","pin":"1234"}
+ *   GET  /api/accounts/{n}
+ *   POST /api/accounts/{n}/deposit       {"amount":"100.00","reason":"..."}
+ *   POST /api/accounts/{n}/withdraw      {"amount":"100.00","reason":"..."}
+ *   POST /api/accounts/{n}/transfer      {"to":"1002","amount":"100.00","reason":"..."}
+ *   GET  /api/accounts/{n}/history?limit=50
+ *
+ * Everything under /api/accounts needs the account's PIN in an X-Pin header.
+ * Amounts are rupee strings as typed in the app; responses give both the
+ * formatted amount and paise.
+ *
+ * Requests run on a cached thread pool. The build targets Java 17, which
+ * has no virtual threads, so that is what the server uses as built and run
+ * here; only when the classes are run on a Java 21+ JVM does
+ * newRequestExecutor find the virtual-thread executor and give each request
+ * its own virtual thread.
+ *
+ * The service takes the data directory's lock when it opens, so the server
+ * fails to start while the app, BulkEngine or the reshard tool has the same
+ * directory open.
+ */
+public class BankServer {
+    private static final int MAX_BODY = 64 * 1024;
+    private static final int DEFAULT_HISTORY = 50;
+
+    private final BankingService service;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public BankServer(BankingService service, String host, int port, int backlog) throws IOException {
+        this.service = service;
+        this.executor = newRequestExecutor();
+        server = HttpServer.create(new InetSocketAddress(host, port), backlog);
+        server.createContext("/api/", this::handle);
+        server.setExecutor(executor);
+    }
+
+    public static void main(String[] args) throws IOException {
+        String host = System.getProperty("bank.http.host", "127.0.0.1");
+        int port = Integer.getInteger("bank.http.port", 8080);
+        int backlog = Integer.getInteger("bank.http.backlog", 4096);
+        BankServer server = new BankServer(new BankingService(), host, port, backlog);
+        server.start();
+        System.out.println("Banking API listening on http://" + host + ":" + server.getPort() + "/api/");
+    }
+
+    // a cached pool on Java 17; a virtual thread per request on Java 21+
+    static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try {
+            route(ex);
+        } catch (HttpError e) {
+            send(ex, e.status, error(e.getMessage()));
+        } catch (RuntimeException e) {
+            System.err.println("Failed to handle " + ex.getRequestURI() + ": " + e);
+            send(ex, 500, error("Internal error"));
+        } finally {
+            ex.close();
+        }
+    }
+
+    private void route(HttpExchange ex) throws IOException {
+        String method = ex.getRequestMethod();
+        URI uri = ex.getRequestURI();
+        String[] path = uri.getPath().substring(1).split("/");
+        // path[0] is "api"
+        if (path.length == 2 && path[1].equals("authenticate")) {
+            requireMethod(method, "POST");
+            Map<String, String> body = readBody(ex);
+            Account account = service.authenticate(nonNull(body.get("account")), nonNull(body.get("pin")));
+            if (account == null) throw new HttpError(401, "Invalid account number or PIN");
+            send(ex, 200, accountJson(account));
+            return;
+        }
+        if (path.length < 3 || path.length > 4 || !path[1].equals("accounts")) throw new HttpError(404, "Not found");
+
+        Account account = service.authenticate(path[2], nonNull(ex.getRequestHeaders().getFirst("X-Pin")));
+        if (account == null) throw new HttpError(401, "Invalid account number or PIN");
+        String action = path.length == 4 ? path[3] : "";
+        switch (action) {
+            case "":
+                requireMethod(method, "GET");
+                send(ex, 200, accountJson(account));
+                break;
+            case "history":
+                requireMethod(method, "GET");
+                send(ex, 200, historyJson(account, limit(uri.getRawQuery())));
+                break;
+            case "deposit": {
+                requireMethod(method, "POST");
+                Map<String, String> body = readBody(ex);
+                service.deposit(account, amount(body), reason(body));
+                // looked up again: with bank.offHeap the account may have been parked meanwhile
+                send(ex, 200, accountJson(service.getAccount(account.accountNumber)));
+                break;
+            }
+            case "withdraw": {
+                requireMethod(method, "POST");
+                Map<String, String> body = readBody(ex);
+                if (!service.withdraw(account, amount(body), reason(body))) {
+                    throw new HttpError(409, "Insufficient balance.");
+                }
+                send(ex, 200, accountJson(service.getAccount(account.accountNumber)));
+                break;
+            }
+            case "transfer": {
+                requireMethod(method, "POST");
+                Map<String, String> body = readBody(ex);
+                String to = nonNull(body.get("to")).trim();
+                if (to.isEmpty()) throw new HttpError(400, "Enter recipient account number.");
+                if (to.equals(account.accountNumber)) throw new HttpError(400, "Cannot transfer to your own account.");
+                long amount = amount(body);
+                Account recipient = service.getAccount(to);
+                if (recipient == null) throw new HttpError(404, "Recipient account not found.");
+                if (!service.transfer(account, recipient, amount, reason(body))) {
+                    throw new HttpError(409, "Insufficient balance.");
+                }
+                send(ex, 200, accountJson(service.getAccount(account.accountNumber)));
+                break;
+            }
+            default:
+                throw new HttpError(404, "Not found");
+        }
+    }
+
+    private static void requireMethod(String method, String expected) {
+        if (!method.equals(expected)) throw new HttpError(405, "Use " + expected);
+    }
+
+    private static String nonNull(String s) {
+        return s == null ? "" : s;
+    }
+
+    private static String reason(Map<String, String> body) {
+        String reason = nonNull(body.get("reason"));
+        if (reason.length() > BankingService.MAX_REASON) {
+            throw new HttpError(400, "Reason must be at most " + BankingService.MAX_REASON + " characters.");
+        }
+        return reason;
+    }
+
+    private static long amount(Map<String, String> body) {
+        long amount;
+        try {
+            amount = Money.parse(body.get("amount"));
+        } catch (NumberFormatException e) {
+            throw new HttpError(400, "Invalid amount.");
+        }
+        if (amount <= 0) throw new HttpError(400, "Enter a positive amount.");
+        return amount;
+    }
+
+    private static int limit(String query) {
+        if (query == null) return DEFAULT_HISTORY;
+        for (String param : query.split("&")) {
+            if (!param.startsWith("limit=")) continue;
+            try {
+                return Math.max(0, Integer.parseInt(param.substring("limit=".length())));
+            } catch (NumberFormatException e) {
+                throw new HttpError(400, "Invalid limit.");
+            }
+        }
+        return DEFAULT_HISTORY;
+    }
+
+    private static Map<String, String> readBody(HttpExchange ex) throws IOException {
+        byte[] body;
+        try (InputStream in = ex.getRequestBody()) {
+            body = in.readNBytes(MAX_BODY + 1);
+        }
+        if (body.length > MAX_BODY) throw new HttpError(413, "Request body too large");
+        try {
+            return BulkEngine.JsonLine.parse(new String(body, StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            throw new HttpError(400, e.getMessage());
+        }
+    }
+
+    private static void send(HttpExchange ex, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String accountJson(Account a) {
+        StringBuilder sb = new StringBuilder(192).append('{');
+        field(sb, "account", a.accountNumber).append(',');
+        field(sb, "name", a.name).append(',');
+        field(sb, "phone", a.phoneNumber).append(',');
+        field(sb, "type", a.accountType.getDisplayName()).append(',');
+        money(sb, "balance", a.getBalance());
+        return sb.append('}').toString();
+    }
+
+    private String historyJson(Account a, int limit) {
+        List<Transaction> history = service.getHistory(a, limit);
+        StringBuilder sb = new StringBuilder(64 + history.size() * 160);
+        sb.append('{');
+        field(sb, "account", a.accountNumber).append(",\"transactions\":[");
+        for (int i = 0; i < history.size(); i++) {
+            Transaction t = history.get(i);
+            if (i > 0) sb.append(',');
+            sb.append("{\"time\":").append(t.time == Long.MIN_VALUE ? "null" : Long.toString(t.time)).append(',');
+            field(sb, "type", t.type.name()).append(',');
+            money(sb, "amount", t.amount).append(',');
+            field(sb, "counterparty", t.counterparty).append(',');
+            field(sb, "reason", t.reason).append(',');
+            money(sb, "balance", t.balance).append(',');
+            field(sb, "text", t.toString()).append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static String error(String message) {
+        return field(new StringBuilder("{"), "error", message).append('}').toString();
+    }
+
+    private static StringBuilder money(StringBuilder sb, String name, long paise) {
+        field(sb, name, Money.format(paise));
+        return sb.append(",\"").append(name).append("Paise\":").append(paise);
+    }
+
+    private static StringBuilder field(StringBuilder sb, String name, String value) {
+        sb.append('"').append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"');
+    }
+
+    private static class HttpError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+}
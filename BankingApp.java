@@ -1,6 +1,10 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
 /**
  * Modern Banking Application with modular design
@@ -13,15 +17,33 @@ import java.awt.event.*;
  * - Modern UI with improved design
  * - File-based storage
  *
+ * Postings run on a SwingWorker rather than the event dispatch thread, since
+ * each one waits for its journal record to reach the disk; the dashboard
+ * shows the result once the posting is durable. Closing the window flushes
+ * and checkpoints the store before exiting.
+ *
+ * The window opens at once: the accounts load on a worker thread, with each
+ * stage shown on the welcome screen. Everything up to submitting the login
+ * or new-account form works meanwhile. A login waits only until every
+ * account is loaded, as an account's state is only known once the snapshot,
+ * deltas and journal have all been read, and not for the phone and name
+ * indexes built after that; a new account waits for those too.
+ *
  * Compile: javac *.java
  * Run:     java BankingApp
  */
 public class BankingApp extends JFrame {
+    private static final String TITLE = "🏦 SimpleBank — Modern Banking Experience";
     private CardLayout cards = new CardLayout();
     private JPanel mainPanel = new JPanel(cards);
 
-    private BankingService bankingService;
+    private volatile BankingService bankingService; // null until its accounts are loaded
+    private final CountDownLatch accountsLoaded = new CountDownLatch(1); // or the load failed
+    private SwingWorker<BankingService, String> loader;
     private Account currentAccount = null;
+    private boolean busy; // a posting or login is running
+    private boolean closeRequested; // window closed while busy; closes once it is done
+    private boolean closing;
 
     // UI Panels
     private WelcomePanel welcomePanel;
@@ -30,13 +52,78 @@ public class BankingApp extends JFrame {
     private DashboardPanel dashboardPanel;
 
     public BankingApp() {
-        bankingService = new BankingService();
-        setTitle("🏦 SimpleBank — Modern Banking Experience");
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        setTitle(TITLE);
+        setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                shutdown();
+            }
+        });
         setSize(900, 650);
         setLocationRelativeTo(null);
         setResizable(false);
         initUI();
+        startLoading();
+    }
+
+    private void startLoading() {
+        welcomePanel.setLoadingStatus("Loading accounts…");
+        loader = new SwingWorker<BankingService, String>() {
+            @Override
+            protected BankingService doInBackground() {
+                // set as soon as accounts are loaded rather than in done(), so
+                // logins need not wait for the indexes
+                try {
+                    return new BankingService(this::publish, service -> {
+                        bankingService = service;
+                        accountsLoaded.countDown();
+                    });
+                } catch (RuntimeException | Error ex) {
+                    bankingService = null;
+                    throw ex;
+                } finally {
+                    accountsLoaded.countDown();
+                }
+            }
+
+            @Override
+            protected void process(java.util.List<String> stages) {
+                welcomePanel.setLoadingStatus(stages.get(stages.size() - 1));
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                    welcomePanel.setLoadingStatus(null);
+                } catch (InterruptedException | ExecutionException ex) {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    System.err.println("Failed to load accounts: " + cause);
+                    welcomePanel.setLoadingStatus("Could not load accounts: " + cause.getMessage());
+                }
+            }
+        };
+        loader.execute();
+    }
+
+    // the service, waiting for the load if it is still running; only called
+    // off the EDT
+    private BankingService service() throws Exception {
+        try {
+            return loader.get();
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        }
+    }
+
+    // the service once its accounts are loaded, which may be before it has
+    // finished opening: enough to log in and post, not to open an account.
+    // Only called off the EDT
+    private BankingService accounts() throws Exception {
+        accountsLoaded.await();
+        BankingService service = bankingService;
+        return service != null ? service : service();
     }
 
     private void initUI() {
@@ -84,22 +171,25 @@ public class BankingApp extends JFrame {
     // Handler methods
 
     private void handleLogin() {
+        if (busy) return;
         String acc = loginPanel.getAccountNumber();
         String pin = loginPanel.getPin();
         if (acc.isEmpty()) { showError("Enter account number."); return; }
         if (pin.isEmpty()) { showError("Enter PIN."); return; }
-        Account account = bankingService.authenticate(acc, pin);
-        if (account == null) {
-            showError("Invalid account number or PIN.");
-            return;
-        }
-        currentAccount = account;
-        dashboardPanel.updateAccountInfo(account);
-        loginPanel.clearFields();
-        cards.show(mainPanel, "dash");
+        inBackground(() -> accounts().authenticate(acc, pin), account -> {
+            if (account == null) {
+                showError("Invalid account number or PIN.");
+                return;
+            }
+            currentAccount = account;
+            dashboardPanel.updateAccountInfo(account);
+            loginPanel.clearFields();
+            cards.show(mainPanel, "dash");
+        });
     }
 
     private void handleCreateAccount() {
+        if (busy) return;
         String name = createAccountPanel.getName();
         String phoneNumber = createAccountPanel.getPhoneNumber();
         String pin = createAccountPanel.getPin();
@@ -111,15 +201,16 @@ public class BankingApp extends JFrame {
         if (!isValid4Pin(pin)) { showError("PIN must be exactly 4 digits."); return; }
         if (!pin.equals(pinConfirm)) { showError("PIN and confirmation do not match."); return; }
 
-        Account account = bankingService.createAccount(name, phoneNumber, pin, accountType);
-        showInfo("Account created successfully!\n\nAccount Number: " + account.accountNumber +
-                "\nAccount Type: " + account.accountType.getDisplayName() +
-                "\n\nKeep your PIN safe: " + pin);
-        createAccountPanel.clearFields();
-        cards.show(mainPanel, "login");
-        loginPanel.clearFields();
-        // Pre-fill account number for convenience
-        // Note: In a real app, this would be a security risk
+        inBackground(() -> service().createAccount(name, phoneNumber, pin, accountType), account -> {
+            showInfo("Account created successfully!\n\nAccount Number: " + account.accountNumber +
+                    "\nAccount Type: " + account.accountType.getDisplayName() +
+                    "\n\nKeep your PIN safe: " + pin);
+            createAccountPanel.clearFields();
+            cards.show(mainPanel, "login");
+            loginPanel.clearFields();
+            // Pre-fill account number for convenience
+            // Note: In a real app, this would be a security risk
+        });
     }
 
     private void doDeposit() {
@@ -127,16 +218,22 @@ public class BankingApp extends JFrame {
         String amtStr = JOptionPane.showInputDialog(this, "Enter amount to deposit (₹):", "Deposit", JOptionPane.PLAIN_MESSAGE);
         if (amtStr == null) return;
         try {
-            double amt = Double.parseDouble(amtStr);
+            long amt = Money.parse(amtStr);
             if (amt <= 0) { showError("Enter a positive amount."); return; }
 
             String reason = JOptionPane.showInputDialog(this, "Enter reason (optional):", "Deposit Reason", JOptionPane.PLAIN_MESSAGE);
             if (reason == null) reason = ""; // User cancelled, treat as empty
-
-            currentAccount.deposit(amt, reason);
-            bankingService.saveAccounts();
-            showInfo("Successfully deposited ₹" + amt);
-            dashboardPanel.updateAccountInfo(currentAccount);
+            if (reason.length() > BankingService.MAX_REASON) { showError("Reason must be at most " + BankingService.MAX_REASON + " characters."); return; }
+
+            Account account = currentAccount;
+            String why = reason;
+            inBackground(() -> {
+                bankingService.deposit(account, amt, why);
+                return null;
+            }, ok -> {
+                showInfo("Successfully deposited ₹" + Money.format(amt));
+                dashboardPanel.updateAccountInfo(refreshed());
+            });
         } catch (NumberFormatException ex) {
             showError("Invalid amount.");
         }
@@ -147,19 +244,23 @@ public class BankingApp extends JFrame {
         String amtStr = JOptionPane.showInputDialog(this, "Enter amount to withdraw (₹):", "Withdraw", JOptionPane.PLAIN_MESSAGE);
         if (amtStr == null) return;
         try {
-            double amt = Double.parseDouble(amtStr);
+            long amt = Money.parse(amtStr);
             if (amt <= 0) { showError("Enter a positive amount."); return; }
 
             String reason = JOptionPane.showInputDialog(this, "Enter reason (optional):", "Withdraw Reason", JOptionPane.PLAIN_MESSAGE);
             if (reason == null) reason = ""; // User cancelled, treat as empty
-
-            if (!currentAccount.withdraw(amt, reason)) {
-                showError("Insufficient balance.");
-                return;
-            }
-            bankingService.saveAccounts();
-            showInfo("Successfully withdrew ₹" + amt);
-            dashboardPanel.updateAccountInfo(currentAccount);
+            if (reason.length() > BankingService.MAX_REASON) { showError("Reason must be at most " + BankingService.MAX_REASON + " characters."); return; }
+
+            Account account = currentAccount;
+            String why = reason;
+            inBackground(() -> bankingService.withdraw(account, amt, why), ok -> {
+                if (!ok) {
+                    showError("Insufficient balance.");
+                    return;
+                }
+                showInfo("Successfully withdrew ₹" + Money.format(amt));
+                dashboardPanel.updateAccountInfo(refreshed());
+            });
         } catch (NumberFormatException ex) {
             showError("Invalid amount.");
         }
@@ -190,25 +291,27 @@ public class BankingApp extends JFrame {
         String reason = reasonField.getText().trim();
 
         if (recipientAcc.isEmpty()) { showError("Enter recipient account number."); return; }
+        if (reason.length() > BankingService.MAX_REASON) { showError("Reason must be at most " + BankingService.MAX_REASON + " characters."); return; }
         if (recipientAcc.equals(currentAccount.accountNumber)) {
             showError("Cannot transfer to your own account."); return;
         }
 
         try {
-            double amt = Double.parseDouble(amtStr);
+            long amt = Money.parse(amtStr);
             if (amt <= 0) { showError("Enter a positive amount."); return; }
 
             Account recipient = bankingService.getAccount(recipientAcc);
             if (recipient == null) { showError("Recipient account not found."); return; }
 
-            if (!currentAccount.transferTo(recipient, amt, reason)) {
-                showError("Insufficient balance.");
-                return;
-            }
-
-            bankingService.saveAccounts();
-            showInfo("Successfully transferred ₹" + amt + " to account " + recipientAcc);
-            dashboardPanel.updateAccountInfo(currentAccount);
+            Account account = currentAccount;
+            inBackground(() -> bankingService.transfer(account, recipient, amt, reason), ok -> {
+                if (!ok) {
+                    showError("Insufficient balance.");
+                    return;
+                }
+                showInfo("Successfully transferred ₹" + Money.format(amt) + " to account " + recipientAcc);
+                dashboardPanel.updateAccountInfo(refreshed());
+            });
         } catch (NumberFormatException ex) {
             showError("Invalid amount.");
         }
@@ -216,7 +319,7 @@ public class BankingApp extends JFrame {
 
     private void showTxnDialog() {
         if (currentAccount == null) return;
-        JTextArea area = new JTextArea(currentAccount.getAllTransactionsText());
+        JTextArea area = new JTextArea(refreshed().getAllTransactionsText());
         area.setEditable(false);
         area.setFont(new Font("Monospaced", Font.PLAIN, 12));
         JScrollPane scroll = new JScrollPane(area);
@@ -247,14 +350,23 @@ public class BankingApp extends JFrame {
         String n1 = new String(newPin.getPassword()).trim();
         String n2 = new String(confirmPin.getPassword()).trim();
 
-        if (!currentAccount.pin.equals(old)) { showError("Current PIN is incorrect."); return; }
+        if (!refreshed().pin.equals(old)) { showError("Current PIN is incorrect."); return; }
         if (!isValid4Pin(n1)) { showError("New PIN must be 4 digits."); return; }
         if (!n1.equals(n2)) { showError("New PIN confirmation does not match."); return; }
 
-        currentAccount.pin = n1;
-        currentAccount.addTransaction("PIN changed");
-        bankingService.saveAccounts();
-        showInfo("PIN changed successfully.");
+        Account account = currentAccount;
+        inBackground(() -> {
+            bankingService.changePin(account, n1);
+            return null;
+        }, ok -> showInfo("PIN changed successfully."));
+    }
+
+    // the logged-in account as the service holds it now: with bank.offHeap the
+    // object from an earlier lookup may have been parked and gone stale
+    private Account refreshed() {
+        Account account = bankingService.getAccount(currentAccount.accountNumber);
+        if (account != null) currentAccount = account;
+        return currentAccount;
     }
 
     private void logout() {
@@ -262,6 +374,69 @@ public class BankingApp extends JFrame {
         cards.show(mainPanel, "welcome");
     }
 
+    // runs work on a SwingWorker and hands its result to done on the EDT; other
+    // actions are ignored until then so a posting cannot be submitted twice
+    private <T> void inBackground(Callable<T> work, Consumer<T> done) {
+        setBusy(true);
+        new SwingWorker<T, Void>() {
+            @Override
+            protected T doInBackground() throws Exception {
+                return work.call();
+            }
+
+            @Override
+            protected void done() {
+                setBusy(false);
+                T result;
+                try {
+                    result = get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    System.err.println("Failed to complete request: " + cause);
+                    if (closeRequested) shutdown();
+                    else showError("Could not complete the request: " + cause.getMessage());
+                    return;
+                }
+                if (closeRequested) shutdown();
+                else done.accept(result);
+            }
+        }.execute();
+    }
+
+    private void setBusy(boolean busy) {
+        this.busy = busy;
+        dashboardPanel.setActionsEnabled(!busy);
+        setCursor(busy ? Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR) : null);
+    }
+
+    // flushes the journal and writes a last checkpoint off the EDT, then exits;
+    // a load still running is let finish so its files are closed cleanly, and
+    // a request still running is let finish first, its result not shown
+    private void shutdown() {
+        if (closing) return;
+        if (busy) {
+            closeRequested = true;
+            setTitle(TITLE + " — closing after the current request…");
+            return;
+        }
+        closing = true;
+        setBusy(true);
+        setTitle(TITLE + " — saving…");
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                service().close();
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                dispose();
+                System.exit(0);
+            }
+        }.execute();
+    }
+
     private boolean isValid4Pin(String pin) {
         return pin.matches("\\d{4}");
     }
@@ -1,18 +1,419 @@
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * Service class for banking operations and data persistence
+ *
+ * By default every mutation is appended to a write-ahead journal instead of
+ * rewriting accounts.db; run with -Dbank.journal=false to go back to saving
+ * the whole file after each operation. A journal left by an earlier run is
+ * still replayed then, and deleted once a snapshot holds it. A journal that
+ * cannot be read stops the service from opening. The files live in the working directory unless bank.dataDir says otherwise.
+ * Only one service may have a directory open at a time: opening takes a lock
+ * on its accounts.lock file and fails if another process, or another service
+ * in this one, holds it.
+ *
+ * The service is safe to call from many threads. Each account is guarded by
+ * one of a fixed set of striped locks (bank.lockStripes, default 1024);
+ * transfers take both stripes in index order so they cannot deadlock. The
+ * journal record is queued while the lock is held and its fsync is awaited
+ * after release, so concurrent postings share group commits.
+ *
+ * A posting is only acknowledged once its journal record is durable. If the
+ * journal cannot be written, the posting that hit it throws
+ * UncheckedIOException and every later posting is refused the same way:
+ * memory may then hold a change the journal does not, and checkpoints stop
+ * too, since the journal can no longer be rotated. Reopening the bank goes
+ * on from what the journal holds.
+ *
+ * A background thread checkpoints every bank.checkpointSeconds (default 60,
+ * 0 for only explicit saveAccounts calls) without stopping postings: the
+ * journal is rotated, accounts are copied one at a time under their own
+ * locks, and the journal segments the snapshot covers are then deleted.
+ * Startup loads the snapshot and replays only the journal tail. Accounts
+ * can be looked up and posted to from then, while the phone and name
+ * indexes are still being built.
+ *
+ * Saves are incremental: accounts changed since the last save are tracked,
+ * and while they are few only they are written, to a delta file
+ * (accounts.delta.<generation>) laid over accounts.db at load. Once
+ * bank.maxDeltas (default 16) deltas exist they are merged into one, and
+ * when the deltas add up to half the size of accounts.db a full snapshot
+ * replaces them all. getBytesWrittenPerOperation() reports what this costs.
+ *
+ * Full snapshots can be split across shard files that are written and
+ * loaded in parallel (see AccountFile). A store keeps the shard count it was
+ * written with; bank.shards sets it for a new store, or changes it from the
+ * next full snapshot, and "java AccountFile reshard <n>" rewrites it at once.
+ *
+ * Besides the account number, accounts can be found by phone number (a hash
+ * index) and by name prefix (a sorted index on the lower-cased name). Both
+ * are built at load and kept up to date by createAccount. With bank.offHeap
+ * they are OffHeapIndex files next to accounts.parked instead, so they cost
+ * the heap nothing per account either.
+ *
+ * With bank.offHeap=true, accounts are parked outside the heap (see
+ * OffHeapAccounts) at load, and the heap holds a bounded cache of recently
+ * used ones however large the book is: at most bank.accountCache accounts
+ * (default 65536). A lookup of a parked account decodes it into the cache.
+ * Past the bound a background thread parks the least recently used ones
+ * (see AccountTable.evict); one with unsaved changes has its history
+ * written back to a scratch file and is saved with the rest at the next
+ * checkpoint, the journal covering it until then. An Account object a caller kept may have been parked
+ * meanwhile; postings take the account's current object under its lock,
+ * so they still apply, but callers that display it should look it up
+ * again. getCacheHits() and its neighbours report how the cache does.
+ *
+ * Accounts listed in bank.hotAccounts (comma-separated numbers, e.g. a fee
+ * collection account) run in hot mode: credits to them skip the stripe and
+ * land in striped cells under a shared lock, so many-to-one transfers do not
+ * queue on one account. Debits and snapshots fold the cells first. Hot locks
+ * are always taken after stripes and in account-number order.
  */
 public class BankingService {
-    private static final File STORE_FILE = new File("accounts.db");
+    private static final boolean JOURNALED = Boolean.parseBoolean(System.getProperty("bank.journal", "true"));
 
-    private Map<String, Account> accounts = new LinkedHashMap<>();
-    private int nextAccountNumber = 1001;
+    private static final long CHECKPOINT_SECONDS = Long.getLong("bank.checkpointSeconds", 60);
+    private static final int MAX_DELTAS = Math.max(1, Integer.getInteger("bank.maxDeltas", 16));
+    private static final String DELTA_PREFIX = "accounts.delta.";
+    private static final Integer SHARDS = Integer.getInteger("bank.shards");
+    private static final boolean OFF_HEAP = Boolean.getBoolean("bank.offHeap");
+    private static final int LOCK_STRIPES = Integer.highestOneBit(
+            Math.max(1, Math.min(1 << 16, Integer.getInteger("bank.lockStripes", 1024))));
+
+    /** Longest reason accepted with a deposit, withdrawal or transfer, in characters. */
+    public static final int MAX_REASON = 200;
+    private static final int CACHE_SIZE = Math.max(0, Integer.getInteger("bank.accountCache", 1 << 16));
+
+    private final OffHeapAccounts offHeap; // null unless accounts are parked
+    private final AccountTable accounts;
+    private final File dataDir;
+    private final File storeFile;
+    private final File journalFile;
+    // lock files of the directories services in this JVM have open
+    private static final Set<String> LOCKED = ConcurrentHashMap.newKeySet();
+    private String lockedPath;
+    private FileChannel lockFile;
+    private FileLock directoryLock; // held while the service is open
+    private final AtomicInteger nextAccountNumber = new AtomicInteger(AccountTable.FIRST_NUMBER);
+    private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+    private final Set<String> hotNumbers = new HashSet<>();
+    private final Map<String, Account> hotAccounts = new ConcurrentSkipListMap<>();
+    // with bank.offHeap, phone and name indexes outside the heap; null otherwise
+    private final OffHeapIndex phones;
+    private final OffHeapIndex names;
+    private final AtomicBoolean indexMergeQueued = new AtomicBoolean();
+    // on the heap: every account without them, else those with no table slot
+    private final Map<String, String[]> byPhone = new ConcurrentHashMap<>();
+    // lower-cased name, a NUL and the account number, so equal names stay apart
+    private final ConcurrentSkipListSet<String> byName = new ConcurrentSkipListSet<>();
+    private long snapshotGeneration = 0;
+    private AccountFile snapshot;
+    private int shards = SHARDS == null ? 1 : Math.max(1, SHARDS);
+    private long storeSeq; // journal position covered by the snapshot and its deltas
+    private boolean compactDue; // replayed changes are not tracked, so the next save is full
+    private boolean journalLeft; // bank.journal=false and a journal to delete once saved
+    // accounts changed since the last save, marked before their journal record is queued
+    private final Set<Account> dirty = ConcurrentHashMap.newKeySet();
+    // accounts changed since the last save and parked since, by number
+    private final Set<String> parkedDirty = ConcurrentHashMap.newKeySet();
+    // delta files over the snapshot, oldest first, and the accounts they hold
+    private final List<AccountFile> deltas = new ArrayList<>();
+    private final Set<String> inDeltas = new HashSet<>();
+    private long deltaBytes;
+    private final AtomicLong storeBytesWritten = new AtomicLong();
+    private final AtomicLong operations = new AtomicLong();
+    private Journal journal;
+    private volatile IOException journalFailure; // set once a record could not be written
+    private ScheduledExecutorService checkpointer;
+    private ExecutorService evictor;
+    private final AtomicBoolean evictionQueued = new AtomicBoolean();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong writeBacks = new AtomicLong();
 
     public BankingService() {
-        loadAccounts();
+        this(stage -> { });
+    }
+
+    /**
+     * Opens the bank in the default directory, telling progress each stage
+     * of loading as it starts, as BankingService(File, Consumer) does.
+     */
+    public BankingService(Consumer<String> progress) {
+        this(progress, service -> { });
+    }
+
+    /**
+     * Opens the bank in the default directory, telling loaded once its
+     * accounts are, as BankingService(File, Consumer, Consumer) does.
+     */
+    public BankingService(Consumer<String> progress, Consumer<BankingService> loaded) {
+        this(new File(System.getProperty("bank.dataDir", ".")), progress, loaded);
+    }
+
+    /**
+     * Opens the bank stored in the given directory.
+     */
+    public BankingService(File dataDir) {
+        this(dataDir, stage -> { });
+    }
+
+    /**
+     * Opens the bank stored in the given directory, telling progress a short
+     * description of each stage of loading as it starts, on the thread that
+     * opens it. Nothing may be called on the service until this returns.
+     */
+    public BankingService(File dataDir, Consumer<String> progress) {
+        this(dataDir, progress, service -> { });
+    }
+
+    /**
+     * Opens the bank as BankingService(File, Consumer) does, and tells
+     * loaded the service, on the thread that opens it, as soon as every
+     * account holds what the store, its deltas and the journal tail say,
+     * before the phone and name indexes are built. From then on other
+     * threads may look accounts up by number, authenticate and post to
+     * them; anything else must wait until this returns.
+     */
+    public BankingService(File dataDir, Consumer<String> progress, Consumer<BankingService> loaded) {
+        this.dataDir = dataDir;
+        storeFile = new File(dataDir, "accounts.db");
+        journalFile = new File(dataDir, "accounts.journal");
+        // a bank.dataDir that does not exist yet is a new bank, not an error
+        try {
+            Files.createDirectories(dataDir.toPath());
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to create data directory " + dataDir + ": " + ex.getMessage(), ex);
+        }
+        lockDirectory();
+        try {
+            OffHeapAccounts parked = null;
+            if (OFF_HEAP) {
+                try {
+                    parked = new OffHeapAccounts(new File(dataDir, "accounts.parked"));
+                } catch (IOException ex) {
+                    System.err.println("Failed to open parked account store: " + ex.getMessage());
+                }
+            }
+            offHeap = parked;
+            OffHeapIndex phoneIndex = null, nameIndex = null;
+            if (offHeap != null) {
+                try {
+                    phoneIndex = new OffHeapIndex(new File(dataDir, "accounts.parked.phones"));
+                    nameIndex = new OffHeapIndex(new File(dataDir, "accounts.parked.names"));
+                } catch (IOException ex) {
+                    System.err.println("Failed to open off-heap index: " + ex.getMessage());
+                    if (phoneIndex != null) phoneIndex.close();
+                    phoneIndex = null;
+                }
+            }
+            phones = phoneIndex;
+            names = phoneIndex == null ? null : nameIndex;
+            accounts = new AccountTable(offHeap);
+            for (int i = 0; i < stripes.length; i++) stripes[i] = new ReentrantLock();
+            for (String acc : System.getProperty("bank.hotAccounts", "").split(",")) {
+                if (!acc.trim().isEmpty()) hotNumbers.add(acc.trim());
+            }
+            progress.accept("Loading accounts…");
+            loadAccounts();
+            if (JOURNALED || Journal.exists(journalFile)) {
+                progress.accept(String.format("Loaded %,d accounts; replaying journal…", accounts.size()));
+                if (JOURNALED) openJournal();
+                else foldJournal();
+            }
+            // a replayed tail may be checkpointing already, and parking what this touches
+            synchronized (this) {
+                // before any posting can reach them
+                for (String acc : hotNumbers) {
+                    Account a = accounts.get(acc);
+                    if (a != null) markHot(a);
+                }
+            }
+            loaded.accept(this);
+            progress.accept(String.format("Indexing %,d accounts…", accounts.size()));
+            synchronized (this) {
+                // parked accounts are read from their records, not decoded
+                accounts.forEachHeader((acc, name, phone, balance) -> index(acc, name, phone));
+                if (phones != null) {
+                    phones.build();
+                    names.build();
+                }
+                if (offHeap != null) startEvictor();
+            }
+        } catch (RuntimeException | Error ex) {
+            releaseDirectory();
+            throw ex;
+        }
+    }
+
+    // before anything in the directory is touched, as opening rewrites
+    // scratch files. Directories open in this JVM are refused before a
+    // channel is opened, as closing any channel to the lock file would drop
+    // the lock the open service holds.
+    private void lockDirectory() {
+        File file = new File(dataDir, "accounts.lock");
+        try {
+            lockedPath = file.getCanonicalPath();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to lock " + file + ": " + ex.getMessage(), ex);
+        }
+        if (!LOCKED.add(lockedPath)) {
+            lockedPath = null;
+            throw new IllegalStateException("Bank in " + dataDir + " is already open in this process");
+        }
+        try {
+            lockFile = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            directoryLock = lockFile.tryLock();
+        } catch (IOException ex) {
+            releaseDirectory();
+            throw new UncheckedIOException("Failed to lock " + file + ": " + ex.getMessage(), ex);
+        }
+        if (directoryLock == null) {
+            releaseDirectory();
+            throw new IllegalStateException("Bank in " + dataDir + " is already open in another process");
+        }
+    }
+
+    private void releaseDirectory() {
+        if (lockFile != null) {
+            try {
+                lockFile.close(); // releases the lock
+            } catch (IOException ex) {
+                System.err.println("Failed to unlock data directory: " + ex.getMessage());
+            }
+        }
+        if (lockedPath != null) LOCKED.remove(lockedPath);
+        lockFile = null;
+        directoryLock = null;
+        lockedPath = null;
+    }
+
+    private void markHot(Account a) {
+        if (!hotNumbers.contains(a.accountNumber)) return;
+        a.setHot(true);
+        hotAccounts.put(a.accountNumber, a);
+    }
+
+    private void index(Account a) {
+        index(a.accountNumber, a.name, a.phoneNumber);
+    }
+
+    private void index(String accountNumber, String name, String phoneNumber) {
+        String phone = phoneNumber == null ? "" : phoneNumber.trim();
+        int slot = phones == null ? -1 : AccountTable.index(accountNumber);
+        if (slot >= 0) {
+            boolean mergeDue = !phone.isEmpty() && phones.add(phoneKey(phone), slot);
+            if (names.add(nameKey(nameKey(name).getBytes(StandardCharsets.UTF_8), (byte) 0), slot)) mergeDue = true;
+            if (mergeDue) mergeIndexes();
+            return;
+        }
+        // accounts opened without a phone number are not indexed by it
+        if (!phone.isEmpty()) {
+            byPhone.merge(phone, new String[] { accountNumber }, (had, add) -> {
+                String[] all = Arrays.copyOf(had, had.length + 1);
+                all[had.length] = add[0];
+                return all;
+            });
+        }
+        byName.add(nameKey(name) + '\0' + accountNumber);
+    }
+
+    private static String nameKey(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    // the number itself for up to 18 digits, else a hash; lookups compare the phone
+    private static long phoneKey(String phone) {
+        if (phone.length() <= 18 && phone.chars().allMatch(c -> c >= '0' && c <= '9')) return Long.parseLong(phone);
+        long h = 1125899906842597L;
+        for (int i = 0; i < phone.length(); i++) h = 31 * h + phone.charAt(i);
+        return h | Long.MIN_VALUE; // apart from the numbers
+    }
+
+    // the first eight bytes of a lower-cased name, the rest filled with pad,
+    // flipped so signed order is byte order
+    private static long nameKey(byte[] name, byte pad) {
+        long key = 0;
+        for (int i = 0; i < 8; i++) key = key << 8 | (i < name.length ? name[i] : pad) & 0xFF;
+        return key ^ Long.MIN_VALUE;
+    }
+
+    // merges the index tails on the evict thread, which lookups wait for
+    private void mergeIndexes() {
+        if (!indexMergeQueued.compareAndSet(false, true)) return;
+        Runnable merge = () -> {
+            indexMergeQueued.set(false);
+            phones.merge();
+            names.merge();
+        };
+        if (evictor == null) {
+            merge.run();
+            return;
+        }
+        try {
+            evictor.execute(merge);
+        } catch (RejectedExecutionException ex) {
+            // closing; the tails go with the files
+        }
+    }
+
+    // before anything is applied or logged
+    private static void checkReason(String reason) {
+        if (reason != null && reason.length() > MAX_REASON) {
+            throw new IllegalArgumentException("Reason longer than " + MAX_REASON + " characters");
+        }
+    }
+
+    // before a posting changes anything: once the journal has failed nothing
+    // more is accepted
+    private void checkJournal() {
+        IOException failure = journalFailure;
+        if (failure != null) throw refused(failure);
+    }
+
+    private UncheckedIOException journalFailed(IOException ex) {
+        if (journalFailure == null) {
+            journalFailure = ex;
+            System.err.println("Failed to write journal: " + ex.getMessage());
+        }
+        return refused(ex);
+    }
+
+    private static UncheckedIOException refused(IOException ex) {
+        return new UncheckedIOException("Journal failed, postings are refused until the bank is reopened: "
+                + ex.getMessage(), ex);
     }
 
     public Account createAccount(String name, String pin) {
@@ -20,14 +421,196 @@ public class BankingService {
     }
 
     public Account createAccount(String name, String phoneNumber, String pin, Account.AccountType accountType) {
-        String acc = String.valueOf(nextAccountNumber++);
-        while (accounts.containsKey(acc)) acc = String.valueOf(nextAccountNumber++);
-        Account a = new Account(acc, name, phoneNumber, pin, 0.0, accountType);
-        accounts.put(acc, a);
-        saveAccounts();
+        checkJournal();
+        String acc = String.valueOf(nextAccountNumber.getAndIncrement());
+        while (accounts.containsKey(acc)) acc = String.valueOf(nextAccountNumber.getAndIncrement());
+        Account a = new Account(acc, name, phoneNumber, pin, 0, accountType);
+        ReentrantLock lock = lockFor(a);
+        long seq;
+        lock.lock();
+        try {
+            markHot(a);
+            accounts.put(acc, a);
+            index(a);
+            dirty.add(a);
+            seq = log(new Journal.Record().open(a));
+        } finally {
+            lock.unlock();
+        }
+        commit(seq);
         return a;
     }
 
+    public void deposit(Account account, long amount, String reason) {
+        checkReason(reason);
+        checkJournal();
+        long seq;
+        Lock lock = account.isHot() ? account.hotLock().readLock() : lockFor(account);
+        lock.lock();
+        try {
+            account = live(account);
+            if (account.isHot()) {
+                Transaction t = account.credit(Transaction.Type.DEPOSIT, amount, "", reason);
+                dirty.add(account);
+                seq = log(new Journal.Record().credit(account, t));
+            } else {
+                account.deposit(amount, reason);
+                dirty.add(account);
+                seq = log(new Journal.Record().post(account));
+            }
+        } finally {
+            lock.unlock();
+        }
+        commit(seq);
+    }
+
+    public boolean withdraw(Account account, long amount, String reason) {
+        checkReason(reason);
+        checkJournal();
+        ReentrantLock lock = lockFor(account);
+        Lock hot = account.isHot() ? account.hotLock().writeLock() : null;
+        long seq;
+        lock.lock();
+        if (hot != null) hot.lock();
+        try {
+            account = live(account);
+            if (!account.withdraw(amount, reason)) return false;
+            dirty.add(account);
+            seq = log(new Journal.Record().post(account));
+        } finally {
+            if (hot != null) hot.unlock();
+            lock.unlock();
+        }
+        commit(seq);
+        return true;
+    }
+
+    public boolean transfer(Account from, Account to, long amount, String reason) {
+        checkReason(reason);
+        checkJournal();
+        // a hot target is credited without its stripe; otherwise take both,
+        // always the lower stripe first
+        boolean hotCredit = to.isHot();
+        int i = stripe(from), j = hotCredit ? i : stripe(to);
+        ReentrantLock first = stripes[Math.min(i, j)];
+        ReentrantLock second = stripes[Math.max(i, j)];
+        Lock fromHot = from.isHot() ? from.hotLock().writeLock() : null;
+        Lock toHot = hotCredit ? to.hotLock().readLock() : null;
+        if (fromHot != null && toHot != null && to.accountNumber.compareTo(from.accountNumber) < 0) {
+            Lock swap = fromHot;
+            fromHot = toHot;
+            toHot = swap;
+        }
+        long seq;
+        first.lock();
+        second.lock();
+        if (fromHot != null) fromHot.lock();
+        if (toHot != null) toHot.lock();
+        try {
+            from = live(from);
+            to = live(to);
+            Transaction in = from.send(to, amount, reason);
+            if (in == null) return false;
+            dirty.add(from);
+            dirty.add(to);
+            Journal.Record record = new Journal.Record().post(from);
+            seq = log(hotCredit ? record.credit(to, in) : record.post(to));
+        } finally {
+            if (toHot != null) toHot.unlock();
+            if (fromHot != null) fromHot.unlock();
+            second.unlock();
+            first.unlock();
+        }
+        commit(seq);
+        return true;
+    }
+
+    public void changePin(Account account, String newPin) {
+        checkJournal();
+        ReentrantLock lock = lockFor(account);
+        Lock hot = account.isHot() ? account.hotLock().writeLock() : null;
+        long seq;
+        lock.lock();
+        if (hot != null) hot.lock();
+        try {
+            account = live(account);
+            account.pin = newPin;
+            account.addTransaction(Transaction.Type.PIN_CHANGED, 0, "", "");
+            dirty.add(account);
+            seq = log(new Journal.Record().pin(account));
+        } finally {
+            if (hot != null) hot.unlock();
+            lock.unlock();
+        }
+        commit(seq);
+    }
+
+    private int stripe(Account account) {
+        return stripe(account.accountNumber);
+    }
+
+    private int stripe(String accountNumber) {
+        int h = accountNumber.hashCode();
+        return (h ^ (h >>> 16)) & (stripes.length - 1);
+    }
+
+    private ReentrantLock lockFor(Account account) {
+        return stripes[stripe(account)];
+    }
+
+    // the account's current object, for one the caller may have kept since it
+    // was parked; called with its stripe held, which keeps it from being parked
+    private Account live(Account account) {
+        if (!account.parked) return account;
+        Account current = accounts.get(account.accountNumber);
+        return current != null ? current : account;
+    }
+
+    // queue one mutation in the journal; called with the account's stripe held
+    private long log(Journal.Record record) {
+        if (journal == null) return 0;
+        try {
+            return journal.enqueue(record);
+        } catch (IOException ex) {
+            throw journalFailed(ex);
+        }
+    }
+
+    // make a logged mutation durable; called after the stripe is released.
+    // Without the journal this falls back to saving the whole file.
+    private void commit(long seq) {
+        operations.incrementAndGet();
+        if (journal == null) {
+            saveAccounts();
+            return;
+        }
+        try {
+            journal.awaitDurable(seq);
+        } catch (IOException ex) {
+            throw journalFailed(ex);
+        }
+    }
+
+    /**
+     * Copy of the newest entries of the account's history, at most limit,
+     * taken while no posting is changing it.
+     */
+    public List<Transaction> getHistory(Account account, int limit) {
+        ReentrantLock lock = lockFor(account);
+        Lock hot = account.isHot() ? account.hotLock().writeLock() : null;
+        lock.lock();
+        if (hot != null) hot.lock();
+        try {
+            account = live(account);
+            account.fold();
+            List<Transaction> history = account.getTransactions();
+            return new ArrayList<>(history.subList(0, Math.min(limit, history.size())));
+        } finally {
+            if (hot != null) hot.unlock();
+            lock.unlock();
+        }
+    }
+
     public Account authenticate(String accountNumber, String pin) {
         Account account = accounts.get(accountNumber);
         if (account != null && account.pin.equals(pin)) {
@@ -44,84 +627,612 @@ public class BankingService {
         return accounts.get(accountNumber);
     }
 
+    public Account getAccount(long accountNumber) {
+        return accounts.get(accountNumber);
+    }
+
+    /**
+     * Accounts registered with the given phone number.
+     */
+    public List<Account> findByPhone(String phoneNumber) {
+        String phone = phoneNumber.trim();
+        List<Account> found = new ArrayList<>();
+        if (phones != null && !phone.isEmpty()) {
+            long key = phoneKey(phone);
+            phones.scan(key, key, (k, slot) -> {
+                Account a = accounts.get(slot + AccountTable.FIRST_NUMBER);
+                if (a != null && phone.equals(a.phoneNumber.trim())) found.add(a);
+                return true;
+            });
+        }
+        String[] numbers = byPhone.get(phone);
+        if (numbers != null) for (String acc : numbers) found.add(accounts.get(acc));
+        return found;
+    }
+
+    /**
+     * Up to limit accounts whose name starts with the prefix, ignoring case,
+     * in name order.
+     */
+    public List<Account> findByNamePrefix(String prefix, int limit) {
+        String from = nameKey(prefix);
+        List<Account> found = new ArrayList<>();
+        for (String key : byName.tailSet(from)) {
+            if (found.size() >= limit || !key.startsWith(from)) break;
+            found.add(accounts.get(key.substring(key.lastIndexOf('\0') + 1)));
+        }
+        if (names == null) return found;
+        // each index holds the first few in name order of its accounts
+        found.addAll(findInNameIndex(from, limit));
+        found.sort(BY_NAME);
+        if (found.size() > limit) found.subList(limit, found.size()).clear();
+        return found;
+    }
+
+    private static final Comparator<Account> BY_NAME =
+            Comparator.comparing((Account a) -> nameKey(a.name)).thenComparing(a -> a.accountNumber);
+
+    // entries sharing a key are put in name order once all are seen, as a
+    // key only holds the first eight bytes of the name
+    private List<Account> findInNameIndex(String from, int limit) {
+        byte[] bytes = from.getBytes(StandardCharsets.UTF_8);
+        List<Account> found = new ArrayList<>();
+        List<Account> group = new ArrayList<>();
+        long[] groupKey = { 0 };
+        names.scan(nameKey(bytes, (byte) 0), nameKey(bytes, (byte) 0xFF), (key, slot) -> {
+            if (key != groupKey[0]) {
+                addGroup(group, found, limit);
+                if (found.size() >= limit) return false;
+                groupKey[0] = key;
+            }
+            Account a = accounts.view(String.valueOf(slot + AccountTable.FIRST_NUMBER));
+            if (a != null && nameKey(a.name).startsWith(from)) group.add(a);
+            return true;
+        });
+        addGroup(group, found, limit);
+        // views were only read; callers get the accounts themselves
+        for (int i = 0; i < found.size(); i++) found.set(i, accounts.get(found.get(i).accountNumber));
+        return found;
+    }
+
+    private static void addGroup(List<Account> group, List<Account> found, int limit) {
+        group.sort(BY_NAME);
+        for (Account a : group) {
+            if (found.size() >= limit) break;
+            found.add(a);
+        }
+        group.clear();
+    }
+
+    public int getAccountCount() {
+        return accounts.size();
+    }
+
+    /**
+     * Saves every account changed since the last save, as a delta or a full
+     * snapshot. With journaling on this is a checkpoint taken while postings
+     * go on, after which the journal segments it covers are deleted; without
+     * the journal postings are held off while it runs.
+     */
     public void saveAccounts() {
-        // write to temp then rename for safety
-        File tmp = new File(STORE_FILE.getAbsolutePath() + ".tmp");
-        try (PrintWriter w = new PrintWriter(new FileWriter(tmp))) {
-            for (Account a : accounts.values()) {
-                StringBuilder sb = new StringBuilder();
-                sb.append(a.accountNumber).append("|")
-                        .append(escape(a.name)).append("|")
-                        .append(escape(a.phoneNumber)).append("|")
-                        .append(a.pin).append("|")
-                        .append(a.balance).append("|")
-                        .append(a.accountType.name()).append("|");
-                // txs separated by ';;'
-                for (int i = 0; i < a.transactions.size(); i++) {
-                    if (i > 0) sb.append(";;");
-                    sb.append(escape(a.transactions.get(i)));
+        if (journal != null) checkpoint();
+        else saveStopped();
+    }
+
+    // consistent snapshot with every stripe held, for running without the
+    // journal; deletes one left by an earlier run once the snapshot holds it
+    private synchronized boolean saveStopped() {
+        for (ReentrantLock lock : stripes) lock.lock();
+        // hot accounts in number order, folded so the snapshot sees exact balances
+        Account[] hot = hotAccounts.values().toArray(new Account[0]);
+        for (Account a : hot) {
+            a.hotLock().writeLock().lock();
+            a.fold();
+        }
+        try {
+            if (!save(snapshotGeneration + 1, drainDirty(), stoppedGuard)) return false;
+            if (journalLeft) Journal.delete(journalFile);
+            journalLeft = false;
+            return true;
+        } finally {
+            for (int i = hot.length - 1; i >= 0; i--) hot[i].hotLock().writeLock().unlock();
+            for (int i = stripes.length - 1; i >= 0; i--) stripes[i].unlock();
+        }
+    }
+
+    // fuzzy snapshot: the journal moves on to a new segment and each account is
+    // copied under its own lock, stamped with the journal position at that moment
+    private synchronized void checkpoint() {
+        long generation = snapshotGeneration + 1;
+        long sealed;
+        try {
+            sealed = journal.rotate(generation);
+        } catch (IOException ex) {
+            System.err.println("Failed to rotate journal: " + ex.getMessage());
+            return;
+        }
+        // drained after the rotation, so every account with a record in the
+        // sealed segments is among them
+        if (!save(generation, drainDirty(), snapshotGuard)) return;
+        storeSeq = Math.max(storeSeq, sealed);
+        journal.deleteSegmentsThrough(sealed);
+    }
+
+    /**
+     * Number of files full snapshots are split across.
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * Rewrites the store as a full snapshot split across the given number of
+     * shard files, which later snapshots keep.
+     */
+    public synchronized void reshard(int shards) {
+        this.shards = Math.max(1, shards);
+        compactDue = true;
+        saveAccounts();
+    }
+
+    // parked ones as views of their records; the save takes over every
+    // history written back so far, so later write-backs go to a new file
+    private List<Account> drainDirty() {
+        Map<String, Account> changed = new LinkedHashMap<>();
+        for (Iterator<String> it = parkedDirty.iterator(); it.hasNext(); ) {
+            String acc = it.next();
+            it.remove();
+            Account a = accounts.view(acc);
+            if (a != null) changed.put(acc, a);
+        }
+        for (Iterator<Account> it = dirty.iterator(); it.hasNext(); ) {
+            Account a = it.next();
+            changed.put(a.accountNumber, a);
+            it.remove();
+        }
+        if (offHeap != null) offHeap.retireHistory();
+        return new ArrayList<>(changed.values());
+    }
+
+    // writes just the changed accounts as a delta unless a full snapshot is
+    // due; on failure they stay marked for the next attempt
+    private boolean save(long generation, List<Account> changed, AccountFile.Guard guard) {
+        boolean full = snapshot == null || compactDue || changed.size() * 2L > accounts.size()
+                || deltaBytes > snapshot.length() / 2;
+        if (!full && changed.isEmpty()) return true;
+        boolean saved = full ? writeSnapshot(generation, guard) : writeDelta(generation, changed, guard);
+        if (!saved) {
+            for (Account a : changed) {
+                if (a.parked) parkedDirty.add(a.accountNumber);
+                else dirty.add(a);
+            }
+        } else if (offHeap != null) {
+            offHeap.dropRetiredHistory();
+            evict(CACHE_SIZE);
+        }
+        return saved;
+    }
+
+    private void startEvictor() {
+        evictor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "evict");
+            t.setDaemon(true);
+            return t;
+        });
+        accounts.onOverflow(CACHE_SIZE, () -> {
+            if (!evictionQueued.compareAndSet(false, true)) return;
+            try {
+                evictor.execute(this::evictInBackground);
+            } catch (RejectedExecutionException ex) {
+                // closing; nothing is evicted any more
+            }
+        });
+        evict(CACHE_SIZE);
+    }
+
+    // brings the cache an eighth under its bound, so this does not run on every miss
+    private void evictInBackground() {
+        evictionQueued.set(false);
+        try {
+            evict(CACHE_SIZE - CACHE_SIZE / 8);
+        } catch (RuntimeException ex) {
+            System.err.println("Failed to evict accounts: " + ex);
+        }
+    }
+
+    // parks least recently used accounts until at most max are cached. One
+    // with unsaved changes has its history written back to the scratch file
+    // first and is saved by number with the rest at the next checkpoint; its
+    // records stay in the journal until then. Hot accounts stay, as their
+    // credits are not in the account's fields. Never while a snapshot is
+    // being written, which relies on nothing else parking.
+    private synchronized void evict(int max) {
+        int parked = accounts.evict(max, a -> {
+            if (a.isHot()) return false;
+            ReentrantLock lock = lockFor(a);
+            lock.lock();
+            try {
+                boolean writeBack = a.getStoredHistory() == null || dirty.contains(a);
+                if (writeBack) a.attachHistory(offHeap.storeHistory(a.getTransactions()));
+                if (!accounts.park(a)) return false;
+                if (writeBack) {
+                    parkedDirty.add(a.accountNumber);
+                    dirty.remove(a);
+                    writeBacks.incrementAndGet();
                 }
-                w.println(sb.toString());
+                return true;
+            } catch (RuntimeException ex) {
+                System.err.println("Failed to park account " + a.accountNumber + ": " + ex.getMessage());
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        });
+        evictions.addAndGet(parked);
+    }
+
+    private final AccountFile.Guard snapshotGuard = new StoreGuard() {
+        @Override
+        public void lock(Account a) {
+            lockFor(a).lock();
+            if (a.isHot()) {
+                a.hotLock().writeLock().lock();
+                a.fold();
+            }
+        }
+
+        @Override
+        public void unlock(Account a) {
+            if (a.isHot()) a.hotLock().writeLock().unlock();
+            lockFor(a).unlock();
+        }
+
+        @Override
+        public long seq() {
+            return journal.currentSeq();
+        }
+    };
+
+    // saveStopped already holds every lock; without a journal the position
+    // stays where the store had it
+    private final AccountFile.Guard stoppedGuard = new StoreGuard() {
+        @Override
+        public void lock(Account a) { }
+
+        @Override
+        public void unlock(Account a) { }
+
+        @Override
+        public long seq() {
+            return storeSeq;
+        }
+    };
+
+    // how snapshots deal with parked accounts, which they copy from views
+    private abstract class StoreGuard implements AccountFile.Guard {
+        @Override
+        public Account current(Account a) {
+            if (!a.parked) return a;
+            Account installed = accounts.installed(a.accountNumber);
+            return installed != null ? installed : a;
+        }
+
+        @Override
+        public void relocate(String accountNumber, StoredHistory stored) {
+            ReentrantLock lock = stripes[stripe(accountNumber)];
+            lock.lock();
+            try {
+                accounts.relocate(accountNumber, stored);
+            } finally {
+                lock.unlock();
             }
+        }
+    }
+
+    private boolean writeSnapshot(long generation, AccountFile.Guard guard) {
+        try {
+            AccountFile written = AccountFile.write(storeFile, generation, accounts.values(), guard, shards);
+            if (snapshot != null) snapshot.close();
+            snapshot = written;
         } catch (IOException ex) {
             System.err.println("Failed to save accounts: " + ex.getMessage());
-            return;
+            return false;
         }
-        // rename
-        if (STORE_FILE.exists()) {
-            STORE_FILE.delete();
+        dropDeltas();
+        compactDue = false;
+        noteSaved(generation, snapshot.getSeq(), snapshot.length());
+        return true;
+    }
+
+    // the changed accounts in a new delta file; past MAX_DELTAS the existing
+    // deltas are merged into it, so it holds every account they hold
+    private boolean writeDelta(long generation, List<Account> changed, AccountFile.Guard guard) {
+        boolean merge = deltas.size() >= MAX_DELTAS;
+        Collection<Account> content = changed;
+        if (merge) {
+            // parked ones as views of their records, so merging installs nothing
+            Map<String, Account> all = new LinkedHashMap<>();
+            for (String acc : inDeltas) {
+                Account a = accounts.view(acc);
+                if (a != null) all.put(acc, a);
+            }
+            for (Account a : changed) all.put(a.accountNumber, a);
+            content = all.values();
+        }
+        File file = new File(dataDir, DELTA_PREFIX + generation);
+        AccountFile written;
+        try {
+            written = AccountFile.write(file, generation, content, guard);
+        } catch (IOException ex) {
+            System.err.println("Failed to save changed accounts: " + ex.getMessage());
+            return false;
         }
-        tmp.renameTo(STORE_FILE);
+        if (merge) dropDeltas();
+        deltas.add(written);
+        for (Account a : content) inDeltas.add(a.accountNumber);
+        deltaBytes += file.length();
+        noteSaved(generation, written.getSeq(), file.length());
+        return true;
+    }
+
+    private void noteSaved(long generation, long seq, long bytes) {
+        snapshotGeneration = generation;
+        storeSeq = Math.max(storeSeq, seq);
+        storeBytesWritten.addAndGet(bytes);
+    }
+
+    // closes and deletes the delta files once something newer holds their accounts
+    private void dropDeltas() {
+        for (AccountFile delta : deltas) {
+            delta.close();
+            if (!delta.getFile().delete()) System.err.println("Failed to delete " + delta.getFile());
+        }
+        deltas.clear();
+        inDeltas.clear();
+        deltaBytes = 0;
+    }
+
+    // generation of a delta file from its name, -1 for any other file
+    private static long deltaGeneration(String name) {
+        if (!name.startsWith(DELTA_PREFIX)) return -1;
+        try {
+            return Long.parseLong(name.substring(DELTA_PREFIX.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private void startCheckpointer(boolean replayed) {
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+        if (CHECKPOINT_SECONDS > 0) {
+            checkpointer.scheduleWithFixedDelay(this::backgroundCheckpoint,
+                    CHECKPOINT_SECONDS, CHECKPOINT_SECONDS, TimeUnit.SECONDS);
+        }
+        // fold a replayed tail in without holding up startup
+        if (replayed) checkpointer.execute(this::backgroundCheckpoint);
+    }
+
+    private synchronized void backgroundCheckpoint() {
+        try {
+            // skip when nothing was logged since the last snapshot
+            if (snapshot == null || journal.currentSeq() > storeSeq) checkpoint();
+        } catch (RuntimeException ex) {
+            System.err.println("Failed to checkpoint: " + ex);
+        }
+    }
+
+    private void openJournal() {
+        journal = new Journal(journalFile);
+        try {
+            int replayed = journal.open(snapshotGeneration, storeSeq, accounts);
+            if (replayed > 0) {
+                for (String acc : accounts.keySet()) noteAccountNumber(acc);
+                compactDue = true;
+            }
+            startCheckpointer(replayed > 0);
+        } catch (IOException ex) {
+            // running on without it would leave its records to be replayed over later snapshots
+            journal.close();
+            journal = null;
+            close();
+            throw new UncheckedIOException("Failed to open journal " + journalFile + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    // bank.journal=false with a journal from an earlier run: replays it and
+    // folds it into a snapshot, after which it is deleted
+    private void foldJournal() {
+        Journal pending = new Journal(journalFile);
+        try {
+            pending.open(snapshotGeneration, storeSeq, accounts);
+        } catch (IOException ex) {
+            close();
+            throw new UncheckedIOException("Failed to replay journal " + journalFile + ": " + ex.getMessage(), ex);
+        } finally {
+            pending.close();
+        }
+        for (String acc : accounts.keySet()) noteAccountNumber(acc);
+        compactDue = true;
+        journalLeft = true;
+        saveStopped();
+    }
+
+    private void noteAccountNumber(String acc) {
+        try {
+            int n = Integer.parseInt(acc);
+            nextAccountNumber.accumulateAndGet(n + 1, Math::max);
+        } catch (Exception ex) { }
     }
 
     private void loadAccounts() {
-        if (!STORE_FILE.exists()) {
+        if (!storeFile.exists()) {
             return;
         }
-        try (BufferedReader r = new BufferedReader(new FileReader(STORE_FILE))) {
-            String line;
-            int highest = nextAccountNumber;
-            while ((line = r.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) continue;
-                // accountNumber|name|phoneNumber|pin|balance|accountType|tx1;;tx2;;tx3
-                String[] parts = line.split("\\|", 7);
-                if (parts.length < 6) continue;
-                String acc = parts[0];
-                String name = unescape(parts[1]);
-                String phoneNumber = unescape(parts[2]);
-                String pin = parts[3];
-                double bal = 0.0;
-                try { bal = Double.parseDouble(parts[4]); } catch (Exception ignored) {}
-                Account.AccountType accountType = Account.AccountType.SAVINGS;
-                try { accountType = Account.AccountType.valueOf(parts[5]); } catch (Exception ignored) {}
-                String txs = parts.length >= 7 ? parts[6] : "";
-                Account a = new Account(acc, name, phoneNumber, pin, bal, accountType);
-                a.transactions.clear(); // clear default transaction
-                if (!txs.isEmpty()) {
-                    String[] t = txs.split(";;");
-                    for (String s : t) if (!s.isEmpty()) a.transactions.add(unescape(s));
-                }
-                accounts.put(acc, a);
-                try {
-                    int n = Integer.parseInt(acc);
-                    if (n >= highest) highest = n + 1;
-                } catch (Exception ex) { }
-            }
-            nextAccountNumber = Math.max(nextAccountNumber, highest);
+        accounts.setParkOnPut(offHeap != null);
+        try {
+            loadStore();
+        } finally {
+            accounts.setParkOnPut(false);
+        }
+    }
+
+    private void loadStore() {
+        try {
+            snapshot = AccountFile.open(storeFile);
+            snapshot.readAccounts(accounts);
+            snapshotGeneration = snapshot.getGeneration();
+            for (String acc : accounts.keySet()) noteAccountNumber(acc);
+            // convert an old text store on first start, keeping its generation
+            if (snapshot.isLegacy()) snapshot = AccountFile.write(storeFile, snapshotGeneration, accounts.values());
+            storeSeq = snapshot.getSeq();
+            if (SHARDS == null) shards = snapshot.getShards();
         } catch (IOException ex) {
             System.err.println("Failed to load accounts: " + ex.getMessage());
+            return;
+        }
+        loadDeltas();
+    }
+
+    // lays the delta files newer than the snapshot over it in generation
+    // order; older ones were superseded by a full snapshot and are deleted
+    private void loadDeltas() {
+        File[] files = dataDir.listFiles((dir, name) -> deltaGeneration(name) > 0);
+        if (files == null) return;
+        Arrays.sort(files, Comparator.comparingLong(f -> deltaGeneration(f.getName())));
+        for (File file : files) {
+            long generation = deltaGeneration(file.getName());
+            if (generation <= snapshotGeneration) {
+                file.delete();
+                continue;
+            }
+            try {
+                AccountFile delta = AccountFile.open(file);
+                Map<String, Account> changed = new HashMap<>();
+                delta.readAccounts(changed);
+                for (Account a : changed.values()) {
+                    accounts.put(a.accountNumber, a);
+                    inDeltas.add(a.accountNumber);
+                    noteAccountNumber(a.accountNumber);
+                }
+                deltas.add(delta);
+                deltaBytes += file.length();
+                snapshotGeneration = generation;
+                storeSeq = Math.max(storeSeq, delta.getSeq());
+            } catch (IOException ex) {
+                System.err.println("Failed to load " + file.getName() + ": " + ex.getMessage());
+            }
         }
     }
 
-    private static String escape(String s) {
-        return s.replace("|", "%PIPE%").replace(";;", "%SEMI2%");
+    /**
+     * Average number of journal records committed per fsync, 0 when journaling is off.
+     */
+    public double getAverageCommitBatchSize() {
+        return journal == null ? 0.0 : journal.getAverageBatchSize();
+    }
+
+    /**
+     * Bytes written to the journal, snapshots and delta files per posting
+     * since the service was opened.
+     */
+    public double getBytesWrittenPerOperation() {
+        long ops = operations.get();
+        long bytes = storeBytesWritten.get() + (journal == null ? 0 : journal.getBytesWritten());
+        return ops == 0 ? 0.0 : (double) bytes / ops;
+    }
+
+    /**
+     * Writes a last checkpoint, so the next start replays nothing, then stops
+     * the journal writer and releases the open files.
+     */
+    public void close() {
+        if (evictor != null) {
+            evictor.shutdown();
+            try {
+                evictor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (checkpointer != null) {
+            checkpointer.shutdown();
+            try {
+                checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (journal != null) backgroundCheckpoint();
+        if (journal != null) journal.close();
+        if (phones != null) {
+            phones.close();
+            names.close();
+        }
+        if (snapshot != null) snapshot.close();
+        for (AccountFile delta : deltas) delta.close();
+        if (offHeap != null) offHeap.close();
+        releaseDirectory();
+    }
+
+    /**
+     * Bytes of parked account records, 0 unless bank.offHeap is set.
+     */
+    public long getOffHeapBytes() {
+        return offHeap == null ? 0 : offHeap.getAllocatedBytes();
+    }
+
+    /**
+     * Bytes of the phone and name indexes held outside the heap, 0 unless
+     * bank.offHeap is set.
+     */
+    public long getOffHeapIndexBytes() {
+        return phones == null ? 0 : phones.getFileBytes() + names.getFileBytes();
+    }
+
+    /**
+     * Lookups served from the account cache; 0 unless bank.offHeap is set.
+     */
+    public long getCacheHits() {
+        return accounts.getHits();
+    }
+
+    /**
+     * Lookups that decoded a parked account into the cache.
+     */
+    public long getCacheMisses() {
+        return accounts.getMisses();
+    }
+
+    /**
+     * Accounts parked to keep the cache within bank.accountCache.
+     */
+    public long getCacheEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Accounts with unsaved changes parked by writing their history back to
+     * the scratch file.
+     */
+    public long getCacheWriteBacks() {
+        return writeBacks.get();
     }
 
-    private static String unescape(String s) {
-        return s.replace("%PIPE%", "|").replace("%SEMI2%", ";;");
+    /**
+     * Number of accounts held in the cache, changed and hot ones included.
+     */
+    public int getCachedAccountCount() {
+        return accounts.getInstalledCount();
     }
 
+    /**
+     * Every account; with bank.offHeap, parked ones as views that postings
+     * redirect to the account's current object.
+     */
     public Map<String, Account> getAllAccounts() {
         return new LinkedHashMap<>(accounts);
     }
@@ -0,0 +1,397 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Headless engine that applies a file of postings through BankingService
+ *
+ *   java BulkEngine postings.csv [results.csv]
+ *
+ * Input is CSV (op,account,amount,target,reason; a header line is allowed)
+ * or, for .json/.jsonl files, one object per line with the keys op, account
+ * (or from), amount, target (or to) and reason. op is deposit, withdraw or
+ * transfer and amounts are in rupees as typed in the app.
+ *
+ * Lines are partitioned by account across bank.bulk.threads workers
+ * (default 64), and a posting goes to the worker of every account it
+ * touches, so each account's postings, credits from transfers included, are
+ * applied in file order while different accounts run in parallel and share
+ * journal group commits. A transfer between accounts of two workers is
+ * applied once both have reached it, the first to get there waiting for the
+ * other, so it cannot overtake a posting before it on either account. The
+ * same checks as the app
+ * apply, including rejection on insufficient funds. One result per posting
+ * is written to results.csv (default: input name + ".results.csv") as
+ * line,status,detail with status OK, REJECTED or ERROR.
+ */
+public class BulkEngine {
+    private static final int THREADS = Math.max(1, Integer.getInteger("bank.bulk.threads", 64));
+    private static final int QUEUE_SIZE = 4096;
+    private static final int CHUNK = 1 << 16;
+
+    // per-line status
+    private static final byte NONE = 0;
+    private static final byte OK = 1;
+    private static final byte REJECTED = 2;
+    private static final byte ERROR = 3;
+    private static final String[] STATUS_NAMES = { "", "OK", "REJECTED", "ERROR" };
+
+    private enum Op { DEPOSIT, WITHDRAW, TRANSFER }
+
+    private static final class Posting {
+        final int line;
+        final byte[] status; // chunk of the status table holding this line
+        Op op;
+        String account;
+        String target;
+        long amount;
+        String reason;
+        // set for a transfer queued on two workers: the second to take it
+        // applies it, then lets the first go on
+        AtomicBoolean reached;
+        CountDownLatch applied;
+
+        Posting(int line, byte[] status) {
+            this.line = line;
+            this.status = status;
+        }
+    }
+
+    private static final Posting END = new Posting(0, null);
+
+    private final BankingService service;
+    private final List<byte[]> statuses = new ArrayList<>();
+    private final Map<Integer, String> details = new ConcurrentHashMap<>();
+
+    public BulkEngine(BankingService service) {
+        this.service = service;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: java BulkEngine <postings.csv|postings.jsonl> [results.csv]");
+            return;
+        }
+        File input = new File(args[0]);
+        File output = new File(args.length > 1 ? args[1] : args[0] + ".results.csv");
+        if (!input.exists()) {
+            System.err.println("No such file: " + input);
+            return;
+        }
+        BankingService service = new BankingService();
+        try {
+            new BulkEngine(service).run(input, output);
+        } finally {
+            // folds the journal written by the run into accounts.db
+            service.close();
+        }
+    }
+
+    /**
+     * Applies every posting in input and writes the per-line results to output.
+     */
+    public void run(File input, File output) throws IOException, InterruptedException {
+        boolean json = input.getName().toLowerCase(Locale.ROOT).matches(".*\\.jsonl?");
+        List<BlockingQueue<Posting>> queues = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            BlockingQueue<Posting> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+            Thread worker = new Thread(() -> work(queue), "bulk-" + i);
+            queues.add(queue);
+            workers.add(worker);
+            worker.start();
+        }
+
+        long start = System.nanoTime();
+        int lines = 0;
+        try (BufferedReader in = Files.newBufferedReader(input.toPath(), StandardCharsets.UTF_8)) {
+            String text;
+            while ((text = in.readLine()) != null) {
+                int line = ++lines;
+                if (line % CHUNK == 1) statuses.add(new byte[CHUNK]);
+                if (text.trim().isEmpty()) continue;
+                Posting p = new Posting(line, statuses.get(statuses.size() - 1));
+                try {
+                    if (json) parseJson(text, p);
+                    else if (!parseCsv(text, p)) continue;
+                } catch (IllegalArgumentException ex) {
+                    finish(p, ERROR, ex.getMessage());
+                    continue;
+                }
+                int worker = worker(p.account);
+                int other = p.op == Op.TRANSFER ? worker(p.target) : worker;
+                if (other != worker) {
+                    p.reached = new AtomicBoolean();
+                    p.applied = new CountDownLatch(1);
+                    queues.get(other).put(p);
+                }
+                queues.get(worker).put(p);
+            }
+        } finally {
+            for (BlockingQueue<Posting> queue : queues) queue.put(END);
+            for (Thread worker : workers) worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long[] counts = writeResults(output, lines);
+        long postings = counts[OK] + counts[REJECTED] + counts[ERROR];
+        double seconds = elapsed / 1e9;
+        System.out.printf("Applied %d postings from %s in %.1f s (%.0f postings/s): %d ok, %d rejected, %d errors%n",
+                postings, input, seconds, postings / Math.max(seconds, 1e-9), counts[OK], counts[REJECTED], counts[ERROR]);
+        System.out.printf("Average journal commit batch: %.1f records%n", service.getAverageCommitBatchSize());
+        System.out.printf("Bytes written per posting: %.0f%n", service.getBytesWrittenPerOperation());
+        long lookups = service.getCacheHits() + service.getCacheMisses();
+        if (lookups > 0) {
+            System.out.printf("Account cache: %.1f%% hits, %d evictions, %d write-backs%n",
+                    100.0 * service.getCacheHits() / lookups, service.getCacheEvictions(), service.getCacheWriteBacks());
+        }
+        System.out.println("Results written to " + output);
+    }
+
+    private static int worker(String account) {
+        int h = account.hashCode();
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % THREADS;
+    }
+
+    private void work(BlockingQueue<Posting> queue) {
+        try {
+            Posting p;
+            while ((p = queue.take()) != END) {
+                if (p.reached != null && p.reached.compareAndSet(false, true)) {
+                    p.applied.await();
+                    continue;
+                }
+                try {
+                    apply(p);
+                } catch (RuntimeException ex) {
+                    finish(p, ERROR, String.valueOf(ex.getMessage()));
+                } finally {
+                    if (p.applied != null) p.applied.countDown();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // same checks as the deposit, withdraw and transfer dialogs
+    private void apply(Posting p) {
+        Account account = service.getAccount(p.account);
+        if (account == null) {
+            finish(p, ERROR, "Account not found: " + p.account);
+            return;
+        }
+        switch (p.op) {
+            case DEPOSIT:
+                service.deposit(account, p.amount, p.reason);
+                finish(p, OK, null);
+                break;
+            case WITHDRAW:
+                if (service.withdraw(account, p.amount, p.reason)) finish(p, OK, null);
+                else finish(p, REJECTED, "Insufficient balance");
+                break;
+            default:
+                Account target = service.getAccount(p.target);
+                if (target == null) {
+                    finish(p, ERROR, "Recipient account not found: " + p.target);
+                } else if (target.accountNumber.equals(account.accountNumber)) {
+                    finish(p, ERROR, "Cannot transfer to the same account");
+                } else if (service.transfer(account, target, p.amount, p.reason)) {
+                    finish(p, OK, null);
+                } else {
+                    finish(p, REJECTED, "Insufficient balance");
+                }
+                break;
+        }
+    }
+
+    private void finish(Posting p, byte status, String detail) {
+        if (detail != null) details.put(p.line, detail);
+        p.status[(p.line - 1) % CHUNK] = status;
+    }
+
+    private long[] writeResults(File output, int lines) throws IOException {
+        long[] counts = new long[STATUS_NAMES.length];
+        try (BufferedWriter out = Files.newBufferedWriter(output.toPath(), StandardCharsets.UTF_8)) {
+            out.write("line,status,detail\n");
+            for (int line = 1; line <= lines; line++) {
+                byte status = statuses.get((line - 1) / CHUNK)[(line - 1) % CHUNK];
+                if (status == NONE) continue;
+                counts[status]++;
+                out.write(Integer.toString(line));
+                out.write(',');
+                out.write(STATUS_NAMES[status]);
+                out.write(',');
+                String detail = details.get(line);
+                if (detail != null) out.write(quote(detail));
+                out.write('\n');
+            }
+        }
+        return counts;
+    }
+
+    private static String quote(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) return s;
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+
+    // one CSV line; false for a header line
+    private static boolean parseCsv(String text, Posting p) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quoted) {
+                if (c != '"') field.append(c);
+                else if (i + 1 < text.length() && text.charAt(i + 1) == '"') field.append(text.charAt(++i));
+                else quoted = false;
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+        String op = fields.get(0).toLowerCase(Locale.ROOT);
+        if (p.line == 1 && (op.equals("op") || op.equals("type"))) return false;
+        set(p, op, field(fields, 1), field(fields, 2), field(fields, 3), field(fields, 4));
+        return true;
+    }
+
+    private static String field(List<String> fields, int i) {
+        return i < fields.size() ? fields.get(i) : "";
+    }
+
+    private static void parseJson(String text, Posting p) {
+        Map<String, String> obj = JsonLine.parse(text);
+        String account = obj.containsKey("account") ? obj.get("account") : obj.get("from");
+        String target = obj.containsKey("target") ? obj.get("target") : obj.get("to");
+        set(p, obj.get("op") != null ? obj.get("op") : obj.get("type"), account, obj.get("amount"), target,
+                obj.get("reason"));
+    }
+
+    private static void set(Posting p, String op, String account, String amount, String target, String reason) {
+        if (op == null) throw new IllegalArgumentException("Missing op");
+        try {
+            p.op = Op.valueOf(op.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown op: " + op);
+        }
+        if (account == null || account.isEmpty()) throw new IllegalArgumentException("Missing account");
+        p.account = account;
+        try {
+            p.amount = Money.parse(amount);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        }
+        if (p.amount <= 0) throw new IllegalArgumentException("Amount must be positive: " + amount);
+        if (p.op == Op.TRANSFER && (target == null || target.isEmpty())) {
+            throw new IllegalArgumentException("Missing recipient account");
+        }
+        p.target = target;
+        p.reason = reason == null ? "" : reason;
+        if (p.reason.length() > BankingService.MAX_REASON) {
+            throw new IllegalArgumentException("Reason longer than " + BankingService.MAX_REASON + " characters");
+        }
+    }
+
+    /**
+     * Reader for the flat JSON objects of a .jsonl postings file. Values
+     * come back as strings; nested objects and arrays are not supported.
+     */
+    static final class JsonLine {
+        private final String s;
+        private int i;
+
+        private JsonLine(String s) {
+            this.s = s;
+        }
+
+        static Map<String, String> parse(String text) {
+            JsonLine r = new JsonLine(text);
+            Map<String, String> obj = new HashMap<>();
+            r.expect('{');
+            if (r.peek() != '}') {
+                do {
+                    String key = r.string();
+                    r.expect(':');
+                    obj.put(key, r.value());
+                } while (r.accept(','));
+            }
+            r.expect('}');
+            if (r.peek() != 0) throw new IllegalArgumentException("Trailing text after JSON object");
+            return obj;
+        }
+
+        private char peek() {
+            while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+            return i < s.length() ? s.charAt(i) : 0;
+        }
+
+        private boolean accept(char c) {
+            if (peek() != c) return false;
+            i++;
+            return true;
+        }
+
+        private void expect(char c) {
+            if (!accept(c)) throw new IllegalArgumentException("Invalid JSON: expected '" + c + "' at " + i);
+        }
+
+        private String value() {
+            char c = peek();
+            if (c == '"') return string();
+            int start = i;
+            while (i < s.length() && ",} \t".indexOf(s.charAt(i)) < 0) i++;
+            String literal = s.substring(start, i);
+            if (literal.isEmpty()) throw new IllegalArgumentException("Invalid JSON: value expected at " + start);
+            return literal.equals("null") ? null : literal;
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (i < s.length()) {
+                char c = s.charAt(i++);
+                if (c == '"') return sb.toString();
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (i >= s.length()) break;
+                char e = s.charAt(i++);
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if (i + 4 > s.length()) throw new IllegalArgumentException("Invalid JSON escape at " + i);
+                        sb.append((char) Integer.parseInt(s.substring(i, i + 4), 16));
+                        i += 4;
+                        break;
+                    default: sb.append(e); break;
+                }
+            }
+            throw new IllegalArgumentException("Invalid JSON: unterminated string");
+        }
+    }
+}
@@ -2,18 +2,11 @@ import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.awt.event.ActionListener;
-import java.text.DecimalFormat;
-import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Dashboard panel showing account information and actions
  */
 public class DashboardPanel extends JPanel {
-    private static final DecimalFormat MONEY = new DecimalFormat("#,##0.00");
-
     private JLabel lblWelcome;
     private JLabel lblBalance;
     private JLabel lblAccountType;
@@ -215,51 +208,35 @@ public class DashboardPanel extends JPanel {
         return button;
     }
 
-    private double calculateMonthlyDeposits(Account account) {
-        double total = 0.0;
-        LocalDate now = LocalDate.now();
-        String currentMonth = now.format(DateTimeFormatter.ofPattern("yyyy-MM"));
-        Pattern depositPattern = Pattern.compile("Deposit ₹([0-9,]+\\.[0-9]{2})");
-        Pattern transferInPattern = Pattern.compile("Transfer from [A-Z0-9]+ ₹([0-9,]+\\.[0-9]{2})");
-
-        for (String transaction : account.transactions) {
-            if (transaction.startsWith(currentMonth)) {
-                Matcher depositMatcher = depositPattern.matcher(transaction);
-                if (depositMatcher.find()) {
-                    try {
-                        String amountStr = depositMatcher.group(1).replace(",", "");
-                        total += Double.parseDouble(amountStr);
-                    } catch (NumberFormatException e) {
-                        // Skip invalid amounts
-                    }
-                }
-                
-                Matcher transferMatcher = transferInPattern.matcher(transaction);
-                if (transferMatcher.find()) {
-                    try {
-                        String amountStr = transferMatcher.group(1).replace(",", "");
-                        total += Double.parseDouble(amountStr);
-                    } catch (NumberFormatException e) {
-                        // Skip invalid amounts
-                    }
-                }
-            }
-        }
-        return total;
+    private long calculateMonthlyDeposits(Account account) {
+        MonthlyStats.Month month = account.getMonthlyStats().current();
+        return month == null ? 0 : month.received();
     }
 
     private int getTransactionCount(Account account) {
-        return account.transactions.size();
+        return account.getTransactionCount();
+    }
+
+    /**
+     * Disables the action buttons while a posting is being saved.
+     */
+    public void setActionsEnabled(boolean enabled) {
+        btnDeposit.setEnabled(enabled);
+        btnWithdraw.setEnabled(enabled);
+        btnTransfer.setEnabled(enabled);
+        btnHistory.setEnabled(enabled);
+        btnChangePin.setEnabled(enabled);
+        btnLogout.setEnabled(enabled);
     }
 
     public void updateAccountInfo(Account account) {
         lblWelcome.setText("Welcome, " + account.name);
         lblAccountType.setText("Account Type: " + account.accountType.getDisplayName());
-        lblBalance.setText("Balance: ₹" + MONEY.format(account.balance));
+        lblBalance.setText("Balance: ₹" + Money.format(account.getBalance()));
 
         // Update dynamic stats
-        double monthlyDeposits = calculateMonthlyDeposits(account);
-        lblMonthlyAmount.setText("+" + MONEY.format(monthlyDeposits));
+        long monthlyDeposits = calculateMonthlyDeposits(account);
+        lblMonthlyAmount.setText("+" + Money.format(monthlyDeposits));
 
         int transactionCount = getTransactionCount(account);
         lblTransactionCount.setText(String.valueOf(transactionCount));
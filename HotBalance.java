@@ -0,0 +1,171 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped credit cells for a heavily credited ("hot") account
+ *
+ * Credits to a hot account are added to a LongAdder and their history
+ * entries queued, so many senders can pay the account at once without
+ * meeting on one balance field. Whatever needs the exact balance - a debit,
+ * a PIN change, a snapshot - takes the exclusive side of the lock and folds
+ * the cells back into the account.
+ *
+ * The shared side is striped as well, so credits never meet on a lock word
+ * either: a credit counts itself in and out on two LongAdders, and the
+ * exclusive side raises a flag and waits until the counts meet. A credit
+ * that finds the flag raised counts itself out again and waits for the fold
+ * to finish. The exclusive side is reentrant; the shared side may be taken
+ * while holding it, but not the other way round.
+ *
+ * getBalance() reads without any lock; a fold bumps a stamp around its
+ * changes so such a read can tell it saw one half-done and retry.
+ */
+public class HotBalance {
+    final ReadWriteLock lock = new CreditLock();
+
+    private final LongAdder credits = new LongAdder();
+    private final Queue<Transaction> entries = new ConcurrentLinkedQueue<>();
+    // credits begun and finished: equal when none is in flight
+    private final LongAdder entered = new LongAdder();
+    private final LongAdder exited = new LongAdder();
+    private final ReentrantLock exclusive = new ReentrantLock();
+    private volatile boolean folding;
+    private volatile int stamp; // odd while a fold is changing the account
+
+    /**
+     * Queues one credit; the caller holds the shared lock.
+     */
+    Transaction add(Transaction t) {
+        credits.add(t.amount);
+        entries.add(t);
+        return t;
+    }
+
+    /**
+     * Credits added since the last fold.
+     */
+    long pending() {
+        return credits.sum();
+    }
+
+    boolean hasPending() {
+        return !entries.isEmpty();
+    }
+
+    // the rest only with the exclusive lock held, so no credit is in flight
+
+    long drainCredits() {
+        return credits.sumThenReset();
+    }
+
+    Transaction pollEntry() {
+        return entries.poll();
+    }
+
+    void beginFold() {
+        stamp++;
+    }
+
+    void endFold() {
+        stamp++;
+    }
+
+    /**
+     * Stamp to read before and after an unlocked read; an odd one, or one
+     * that changed meanwhile, means a fold got in the way.
+     */
+    int stamp() {
+        return stamp;
+    }
+
+    private final class CreditLock implements ReadWriteLock {
+        private final Lock shared = new Side() {
+            @Override
+            public void lock() {
+                while (!tryLock()) {
+                    // wait the fold out
+                    exclusive.lock();
+                    exclusive.unlock();
+                }
+            }
+
+            @Override
+            public boolean tryLock() {
+                entered.increment();
+                if (!folding || exclusive.isHeldByCurrentThread()) return true;
+                exited.increment();
+                return false;
+            }
+
+            @Override
+            public void unlock() {
+                exited.increment();
+            }
+        };
+
+        private final Lock exclusiveSide = new Side() {
+            @Override
+            public void lock() {
+                exclusive.lock();
+                if (exclusive.getHoldCount() == 1) drain();
+            }
+
+            @Override
+            public boolean tryLock() {
+                if (!exclusive.tryLock()) return false;
+                if (exclusive.getHoldCount() == 1) drain();
+                return true;
+            }
+
+            @Override
+            public void unlock() {
+                if (exclusive.getHoldCount() == 1) folding = false;
+                exclusive.unlock();
+            }
+
+            // credits counted out before the ones counted in are read, so
+            // equal sums mean none was in flight between the two reads
+            private void drain() {
+                folding = true;
+                for (int spins = 0; exited.sum() != entered.sum(); spins++) {
+                    if (spins < 100) Thread.onSpinWait();
+                    else Thread.yield();
+                }
+            }
+        };
+
+        @Override
+        public Lock readLock() {
+            return shared;
+        }
+
+        @Override
+        public Lock writeLock() {
+            return exclusiveSide;
+        }
+    }
+
+    // only lock, tryLock and unlock are used
+    private abstract static class Side implements Lock {
+        @Override
+        public void lockInterruptibly() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,641 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of account mutations.
+ *
+ * Every mutation is written as one length-prefixed, checksummed record, so its
+ * cost does not depend on how many accounts exist. At startup the records are
+ * replayed on top of the last snapshot. The journal carries the generation of
+ * the snapshot it extends; a journal older than the snapshot has already been
+ * folded into it and is skipped. The same holds for each sealed segment, and
+ * for a journal left behind by a run with bank.journal=false, whose
+ * snapshots move the generation on without touching the journal.
+ *
+ * Writes go through a group commit: a single writer thread collects records
+ * from concurrent callers, writes them together and forces them with one
+ * fsync, then releases every caller in the batch. A batch is closed when it
+ * reaches bank.journal.batchSize records or bank.journal.maxWaitMicros after
+ * its first record arrived, whichever comes first. The wait is skipped while
+ * batches hold a single record, so an uncontended caller pays only the fsync.
+ *
+ * Every record carries a sequence number that keeps growing across restarts.
+ * A checkpoint rotates the journal: the current file is sealed as
+ * accounts.journal.<last seq> and appends continue in a fresh one, so
+ * writers are never held up while the snapshot is written. Once the snapshot
+ * is in place the sealed segments it covers are deleted. On startup sealed
+ * segments are replayed before the current file; entries at or below the
+ * sequence an account was captured at in the snapshot are skipped.
+ */
+public class Journal {
+    private static final int MAGIC = 0x424E4B4A; // "BNKJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    // entry types
+    private static final byte OPEN = 1;
+    private static final byte POST = 2;
+    private static final byte PIN = 3;
+    private static final byte CREDIT = 4; // amount added to a hot account
+
+    private final File file;
+    private final int batchSize;
+    private final long maxWaitNanos;
+    private FileChannel channel;
+    private long generation;
+
+    // rotation handshake with the writer thread, guarded by lock
+    private boolean rotateRequested;
+    private long rotateGeneration;
+    private long rotatedSeq;
+    private IOException rotateError;
+
+    // group commit state, guarded by lock
+    private final Object lock = new Object();
+    private final List<byte[]> pending = new ArrayList<>();
+    private long appendedSeq = 0;
+    private long durableSeq = 0;
+    private IOException failure;
+    private boolean closed;
+    private Thread writer;
+
+    // batching statistics, guarded by lock
+    private long batches = 0;
+    private long batchedRecords = 0;
+    private int lastBatchSize = 0;
+    private int maxBatchSize = 0;
+    private long bytesWritten = 0;
+
+    public Journal(File file) {
+        this(file, Integer.getInteger("bank.journal.batchSize", 128),
+                Long.getLong("bank.journal.maxWaitMicros", 500));
+    }
+
+    public Journal(File file, int batchSize, long maxWaitMicros) {
+        this.file = file;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxWaitMicros));
+    }
+
+    /**
+     * One journal record: the resulting state of every account touched by a
+     * single operation, so replay never has to re-run validation.
+     */
+    public static class Record {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        public Record() {
+            try {
+                out.writeLong(0); // sequence number, filled in when queued
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        public Record open(Account a) {
+            try {
+                out.writeByte(OPEN);
+                AccountFile.putString(out, a.accountNumber);
+                AccountFile.putString(out, a.name);
+                AccountFile.putString(out, a.phoneNumber);
+                AccountFile.putString(out, a.pin);
+                out.writeByte(a.accountType.ordinal());
+                out.writeLong(a.balance);
+                writeLatest(a);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return this;
+        }
+
+        public Record post(Account a) {
+            try {
+                out.writeByte(POST);
+                AccountFile.putString(out, a.accountNumber);
+                out.writeLong(a.balance);
+                writeLatest(a);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return this;
+        }
+
+        public Record pin(Account a) {
+            try {
+                out.writeByte(PIN);
+                AccountFile.putString(out, a.accountNumber);
+                AccountFile.putString(out, a.pin);
+                writeLatest(a);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return this;
+        }
+
+        /**
+         * A credit queued on a hot account: only the entry, whose amount is
+         * added to the balance on replay and whose balance is filled in then.
+         */
+        public Record credit(Account a, Transaction t) {
+            try {
+                out.writeByte(CREDIT);
+                AccountFile.putString(out, a.accountNumber);
+                ByteBuffer tx = t.encode();
+                out.write(tx.array(), 0, tx.limit());
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return this;
+        }
+
+        // the history entry the operation just added
+        private void writeLatest(Account a) throws IOException {
+            ByteBuffer tx = a.getTransactions().get(0).encode();
+            out.write(tx.array(), 0, tx.limit());
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Opens the journal for appending, first applying to accounts every
+     * record not already in the snapshot: sealed segments in order, then the
+     * current file. snapshotSeq is the highest sequence number the snapshot
+     * may hold; numbering continues above it. Returns the number of records
+     * replayed.
+     */
+    public int open(long snapshotGeneration, long snapshotSeq, Map<String, Account> accounts) throws IOException {
+        appendedSeq = durableSeq = snapshotSeq;
+        int replayed = 0;
+        for (File sealed : sealedSegments()) {
+            boolean folded;
+            try (FileChannel ch = FileChannel.open(sealed.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                if (ch.size() < HEADER_SIZE || !readHeader(ch, header)) {
+                    System.err.println("Failed to read journal segment " + sealed + ": not a journal");
+                    continue;
+                }
+                folded = generation < snapshotGeneration;
+                if (!folded) replayed += replay(ch, accounts);
+            }
+            // its name could otherwise be taken for a later segment's
+            if (folded && !sealed.delete()) System.err.println("Failed to delete journal segment " + sealed);
+        }
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        // a journal older than the snapshot was already folded into it
+        if (channel.size() < HEADER_SIZE || !readHeader(channel, header) || generation < snapshotGeneration) {
+            writeHeader(snapshotGeneration);
+            startWriter();
+            return replayed;
+        }
+
+        replayed += replay(channel, accounts);
+        durableSeq = appendedSeq;
+        startWriter();
+        return replayed;
+    }
+
+    // applies the records of one file, dropping a torn tail on the active one
+    private int replay(FileChannel ch, Map<String, Account> accounts) throws IOException {
+        int replayed = 0;
+        long pos = HEADER_SIZE;
+        long size = ch.size();
+        ByteBuffer prefix = ByteBuffer.allocate(8);
+        CRC32 crc = new CRC32();
+        while (pos + 8 <= size) {
+            prefix.clear();
+            ch.read(prefix, pos);
+            prefix.flip();
+            int len = prefix.getInt();
+            int sum = prefix.getInt();
+            if (len <= 0 || pos + 8 + len > size) break;
+            ByteBuffer payload = ByteBuffer.allocate(len);
+            ch.read(payload, pos + 8);
+            crc.reset();
+            crc.update(payload.array(), 0, len);
+            if ((int) crc.getValue() != sum) break;
+            payload.flip();
+            appendedSeq = Math.max(appendedSeq, apply(payload, accounts));
+            replayed++;
+            pos += 8 + len;
+        }
+        if (ch == channel) {
+            // drop a torn record left by a crash mid-append
+            if (pos < size) ch.truncate(pos);
+            ch.position(pos);
+        }
+        return replayed;
+    }
+
+    // sealed segments, oldest first
+    private File[] sealedSegments() {
+        return sealedSegments(file);
+    }
+
+    private static File[] sealedSegments(File file) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        String prefix = file.getName() + ".";
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix)
+                && name.length() > prefix.length() && name.substring(prefix.length()).chars().allMatch(Character::isDigit));
+        if (files == null) return new File[0];
+        Arrays.sort(files, Comparator.comparingLong(f -> sealedSeq(file, f)));
+        return files;
+    }
+
+    private long sealedSeq(File segment) {
+        return sealedSeq(file, segment);
+    }
+
+    private static long sealedSeq(File file, File segment) {
+        try {
+            return Long.parseLong(segment.getName().substring(file.getName().length() + 1));
+        } catch (NumberFormatException ex) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Whether a journal, active or sealed, exists at the given path.
+     */
+    public static boolean exists(File file) {
+        return file.exists() || sealedSegments(file).length > 0;
+    }
+
+    /**
+     * Deletes a journal that is not open, sealed segments first, once a
+     * snapshot holds everything in it.
+     */
+    public static void delete(File file) {
+        for (File sealed : sealedSegments(file)) {
+            if (!sealed.delete()) System.err.println("Failed to delete journal segment " + sealed);
+        }
+        if (file.exists() && !file.delete()) System.err.println("Failed to delete journal " + file);
+    }
+
+    private void startWriter() {
+        writer = new Thread(this::writeLoop, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // false if this is not a journal; one in another format cannot be replayed
+    private boolean readHeader(FileChannel ch, ByteBuffer header) throws IOException {
+        ch.read(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC) return false;
+        int v = header.getInt();
+        if (v != VERSION) throw new IOException("Unsupported journal version " + v);
+        generation = header.getLong();
+        return true;
+    }
+
+    private static final Account.AccountType[] TYPES = Account.AccountType.values();
+
+    // applies one record, returning its sequence number
+    private static long apply(ByteBuffer in, Map<String, Account> accounts) throws IOException {
+        long seq = in.getLong();
+        while (in.hasRemaining()) {
+            byte type = in.get();
+            String acc = AccountFile.getString(in);
+            if (type == OPEN) {
+                String name = AccountFile.getString(in);
+                String phone = AccountFile.getString(in);
+                String pin = AccountFile.getString(in);
+                Account.AccountType accountType = TYPES[in.get()];
+                long bal = in.getLong();
+                Transaction tx = Transaction.decode(in);
+                if (inSnapshot(accounts.get(acc), seq)) continue;
+                Account a = Account.restore(acc, name, phone, pin, bal, accountType);
+                a.restoreTransaction(tx);
+                accounts.put(acc, a);
+            } else if (type == POST) {
+                long bal = in.getLong();
+                Transaction tx = Transaction.decode(in);
+                Account a = accounts.get(acc);
+                if (a == null || inSnapshot(a, seq)) continue;
+                a.balance = bal;
+                a.restoreTransaction(tx);
+            } else if (type == PIN) {
+                String pin = AccountFile.getString(in);
+                Transaction tx = Transaction.decode(in);
+                Account a = accounts.get(acc);
+                if (a == null || inSnapshot(a, seq)) continue;
+                a.pin = pin;
+                a.restoreTransaction(tx);
+            } else if (type == CREDIT) {
+                Transaction tx = Transaction.decode(in);
+                Account a = accounts.get(acc);
+                if (a == null || inSnapshot(a, seq)) continue;
+                a.balance += tx.amount;
+                a.restoreTransaction(tx.withBalance(a.balance));
+            } else {
+                throw new IOException("Unknown journal entry type " + type);
+            }
+        }
+        return seq;
+    }
+
+    // the snapshot captured this account after the record was queued
+    private static boolean inSnapshot(Account a, long seq) {
+        return a != null && seq <= a.snapshotSeq;
+    }
+
+    /**
+     * Appends one record and waits until it has been forced to disk.
+     */
+    public void append(Record record) throws IOException {
+        awaitDurable(enqueue(record));
+    }
+
+    /**
+     * Queues one record for the next group commit without waiting for it.
+     * Records reach the file in the order they were queued. Returns the
+     * sequence number to pass to {@link #awaitDurable}.
+     */
+    public long enqueue(Record record) throws IOException {
+        byte[] payload = record.toByteArray();
+        // the checksum is filled in by the writer, once the sequence number is set
+        ByteBuffer frame = ByteBuffer.allocate(8 + payload.length).putInt(payload.length).putInt(0).put(payload);
+        synchronized (lock) {
+            if (closed) throw new IOException("Journal is closed");
+            if (failure != null) throw failure;
+            long seq = ++appendedSeq;
+            frame.putLong(8, seq);
+            pending.add(frame.array());
+            if (pending.size() == 1 || pending.size() >= batchSize) lock.notifyAll();
+            return seq;
+        }
+    }
+
+    /**
+     * Blocks until the record with the given sequence number is durable.
+     */
+    public void awaitDurable(long seq) throws IOException {
+        boolean interrupted = false;
+        synchronized (lock) {
+            while (durableSeq < seq && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            if (durableSeq < seq) throw failure;
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            byte[][] batch;
+            long batchEnd;
+            synchronized (lock) {
+                try {
+                    while (pending.isEmpty() && !closed && !rotateRequested) lock.wait();
+                    if (rotateRequested) {
+                        // everything written so far is durable and stays in the sealed file
+                        rotateNow();
+                        continue;
+                    }
+                    if (pending.isEmpty()) return;
+                    // give concurrent callers a moment to join this batch; a lone
+                    // caller (last batch held one record) is written straight away
+                    long left = lastBatchSize > 1 ? maxWaitNanos : 0;
+                    long deadline = System.nanoTime() + left;
+                    while (pending.size() < batchSize && !closed && left > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(lock, left);
+                        left = deadline - System.nanoTime();
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                batch = pending.toArray(new byte[0][]);
+                pending.clear();
+                batchEnd = appendedSeq;
+            }
+
+            IOException error = null;
+            long size = 0;
+            try {
+                ByteBuffer[] bufs = new ByteBuffer[batch.length];
+                long total = 0;
+                CRC32 crc = new CRC32();
+                for (int i = 0; i < batch.length; i++) {
+                    crc.reset();
+                    crc.update(batch[i], 8, batch[i].length - 8);
+                    bufs[i] = ByteBuffer.wrap(batch[i]).putInt(4, (int) crc.getValue());
+                    total += batch[i].length;
+                }
+                size = total;
+                while (total > 0) total -= channel.write(bufs);
+                channel.force(false);
+            } catch (IOException ex) {
+                error = ex;
+            }
+
+            synchronized (lock) {
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durableSeq = batchEnd;
+                    batches++;
+                    batchedRecords += batch.length;
+                    bytesWritten += size;
+                    lastBatchSize = batch.length;
+                    maxBatchSize = Math.max(maxBatchSize, batch.length);
+                }
+                lock.notifyAll();
+                if (error != null) return;
+            }
+        }
+    }
+
+    /**
+     * Seals the current file and continues in a fresh one stamped with the
+     * given snapshot generation. Records queued meanwhile go to the new file.
+     * Returns the last sequence number in the sealed segment.
+     */
+    public long rotate(long generation) throws IOException {
+        synchronized (lock) {
+            if (closed) throw new IOException("Journal is closed");
+            if (failure != null) throw failure;
+            rotateGeneration = generation;
+            rotateError = null;
+            rotateRequested = true;
+            lock.notifyAll();
+            boolean interrupted = false;
+            while (rotateRequested && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            if (rotateRequested) throw failure;
+            if (rotateError != null) throw rotateError;
+            return rotatedSeq;
+        }
+    }
+
+    // runs on the writer thread with lock held and no batch in flight
+    private void rotateNow() {
+        rotateRequested = false;
+        lock.notifyAll();
+        File sealed = new File(file.getPath() + "." + durableSeq);
+        if (sealed.exists()) {
+            // nothing was appended since that segment was sealed (e.g. it was
+            // replayed at startup): the active file stays, stamped with the new
+            // generation so the snapshot does not make it look folded in
+            try {
+                if (channel.size() != HEADER_SIZE) throw new IOException("Journal segment " + sealed + " already exists");
+                writeHeader(rotateGeneration);
+                rotatedSeq = durableSeq;
+            } catch (IOException ex) {
+                rotateError = ex;
+            }
+            return;
+        }
+        FileChannel previous = channel;
+        long previousGeneration = generation;
+        try {
+            Files.move(file.toPath(), sealed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            rotateError = ex;
+            return;
+        }
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            writeHeader(rotateGeneration);
+        } catch (IOException ex) {
+            // keep appending to the old file under its old name
+            try {
+                if (channel != previous) channel.close();
+                Files.move(sealed.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ignored) { }
+            channel = previous;
+            generation = previousGeneration;
+            rotateError = ex;
+            return;
+        }
+        try {
+            previous.close();
+        } catch (IOException ex) {
+            System.err.println("Failed to close journal segment: " + ex.getMessage());
+        }
+        rotatedSeq = durableSeq;
+    }
+
+    /**
+     * Deletes sealed segments whose records all have sequence numbers up to
+     * seq, once a snapshot holds them.
+     */
+    public void deleteSegmentsThrough(long seq) {
+        for (File sealed : sealedSegments()) {
+            if (sealedSeq(sealed) <= seq && !sealed.delete()) {
+                System.err.println("Failed to delete journal segment " + sealed);
+            }
+        }
+    }
+
+    /**
+     * Sequence number of the last record queued.
+     */
+    public long currentSeq() {
+        synchronized (lock) {
+            return appendedSeq;
+        }
+    }
+
+    private void writeHeader(long generation) throws IOException {
+        this.generation = generation;
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(generation);
+        header.flip();
+        channel.position(0);
+        while (header.hasRemaining()) channel.write(header);
+        channel.force(false);
+    }
+
+    /**
+     * Average number of records forced per fsync since the journal was opened.
+     */
+    public double getAverageBatchSize() {
+        synchronized (lock) {
+            return batches == 0 ? 0.0 : (double) batchedRecords / batches;
+        }
+    }
+
+    /**
+     * Bytes of records written since the journal was opened.
+     */
+    public long getBytesWritten() {
+        synchronized (lock) {
+            return bytesWritten;
+        }
+    }
+
+    public int getLastBatchSize() {
+        synchronized (lock) {
+            return lastBatchSize;
+        }
+    }
+
+    public int getMaxBatchSize() {
+        synchronized (lock) {
+            return maxBatchSize;
+        }
+    }
+
+    public long getCommitCount() {
+        synchronized (lock) {
+            return batches;
+        }
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Writes out anything still queued, stops the writer and closes the file.
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            System.err.println("Failed to close journal: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Exact money arithmetic on whole paise held in a long
+ *
+ * Replaces double balances and the shared DecimalFormat instances: parsing
+ * and formatting work directly on characters and produce the same
+ * "#,##0.00" text the UI has always shown.
+ */
+public final class Money {
+    private Money() { }
+
+    /**
+     * Parses an amount in rupees such as "1234", "1,234.5", "1,00,000" or
+     * "0.05" into paise. Separators go between digit groups of two or three,
+     * the last of three, as either the international or the Indian grouping
+     * has them; at most two decimal places are accepted.
+     */
+    public static long parse(String s) {
+        if (s == null) throw new NumberFormatException("null");
+        int i = 0, n = s.length();
+        while (i < n && Character.isWhitespace(s.charAt(i))) i++;
+        while (n > i && Character.isWhitespace(s.charAt(n - 1))) n--;
+        boolean negative = false;
+        if (i < n && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+        long rupees = 0;
+        int digits = 0;
+        int group = -1; // digits since the last separator, -1 before the first
+        for (; i < n; i++) {
+            char c = s.charAt(i);
+            if (c == ',') {
+                if (digits == 0 || group == 0 || group == 1 || group > 3) break;
+                group = 0;
+                continue;
+            }
+            if (c < '0' || c > '9') break;
+            if (rupees > (Long.MAX_VALUE / 100 - 9) / 10) throw new NumberFormatException("Amount too large: " + s);
+            rupees = rupees * 10 + (c - '0');
+            digits++;
+            if (group >= 0) group++;
+        }
+        if (group >= 0 && group != 3) throw new NumberFormatException("Invalid amount: " + s);
+        long paise = 0;
+        int decimals = 0;
+        if (i < n && s.charAt(i) == '.') {
+            for (i++; i < n; i++) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') break;
+                if (++decimals > 2) throw new NumberFormatException("More than two decimal places: " + s);
+                paise = paise * 10 + (c - '0');
+            }
+            if (decimals == 0) throw new NumberFormatException("Invalid amount: " + s);
+            if (decimals == 1) paise *= 10;
+        }
+        if (i != n || digits + decimals == 0) throw new NumberFormatException("Invalid amount: " + s);
+        long total = rupees * 100 + paise;
+        return negative ? -total : total;
+    }
+
+    /**
+     * Formats paise as rupees with thousands separators, e.g. 123456 -> "1,234.56".
+     */
+    public static String format(long paise) {
+        return formatTo(new StringBuilder(24), paise).toString();
+    }
+
+    public static StringBuilder formatTo(StringBuilder sb, long paise) {
+        long rupees = paise / 100;
+        long cents = paise % 100;
+        if (paise < 0) {
+            // negate the parts, not the whole, so Long.MIN_VALUE works too
+            sb.append('-');
+            rupees = -rupees;
+            cents = -cents;
+        }
+        return appendRupees(sb, rupees).append('.')
+                .append((char) ('0' + cents / 10)).append((char) ('0' + cents % 10));
+    }
+
+    private static StringBuilder appendRupees(StringBuilder sb, long rupees) {
+        if (rupees < 1000) return sb.append(rupees);
+        appendRupees(sb, rupees / 1000).append(',');
+        long rest = rupees % 1000;
+        if (rest < 100) sb.append('0');
+        if (rest < 10) sb.append('0');
+        return sb.append(rest);
+    }
+
+    /**
+     * Converts an amount in rupees from an older double-based store.
+     */
+    public static long ofRupees(double rupees) {
+        return Math.round(rupees * 100);
+    }
+}
@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+/**
+ * Running per-account totals bucketed by calendar month
+ *
+ * Updated on every posting, so the dashboard reads "This Month" figures in
+ * constant time and they stay right after old entries have fallen out of the
+ * transaction history. The most recent MONTHS_KEPT months are kept.
+ */
+public class MonthlyStats {
+    public static final int MONTHS_KEPT = 12;
+
+    /**
+     * Totals in paise and entry counts for one month.
+     */
+    public static class Month {
+        public final int month; // yyyymm
+        public long credits;
+        public int creditCount;
+        public long debits;
+        public int debitCount;
+        public long transfersIn;
+        public int transferInCount;
+        public long transfersOut;
+        public int transferOutCount;
+
+        Month(int month) {
+            this.month = month;
+        }
+
+        /**
+         * Money that came in: deposits plus incoming transfers.
+         */
+        public long received() {
+            return credits + transfersIn;
+        }
+    }
+
+    // oldest first, at most MONTHS_KEPT
+    private Month[] months = new Month[0];
+
+    /**
+     * Adds a transaction to the bucket of the month it happened in.
+     */
+    public void record(Transaction t) {
+        if (t.time == Long.MIN_VALUE || t.amount == 0) return;
+        Month m;
+        switch (t.type) {
+            case DEPOSIT:
+            case WITHDRAW:
+            case TRANSFER_IN:
+            case TRANSFER_OUT:
+                m = bucket(monthOf(t.time));
+                if (m == null) return;
+                break;
+            default:
+                return;
+        }
+        switch (t.type) {
+            case DEPOSIT:
+                m.credits += t.amount;
+                m.creditCount++;
+                break;
+            case WITHDRAW:
+                m.debits += t.amount;
+                m.debitCount++;
+                break;
+            case TRANSFER_IN:
+                m.transfersIn += t.amount;
+                m.transferInCount++;
+                break;
+            default:
+                m.transfersOut += t.amount;
+                m.transferOutCount++;
+                break;
+        }
+    }
+
+    /**
+     * Totals for the given yyyymm month, or null if nothing was posted in it.
+     */
+    public Month get(int month) {
+        for (int i = months.length - 1; i >= 0; i--) {
+            if (months[i].month == month) return months[i];
+        }
+        return null;
+    }
+
+    public Month current() {
+        return get(monthOf(System.currentTimeMillis()));
+    }
+
+    // finds or creates the bucket; null for a month older than everything kept
+    private Month bucket(int month) {
+        int i = months.length - 1;
+        while (i >= 0 && months[i].month > month) i--;
+        if (i >= 0 && months[i].month == month) return months[i];
+        if (months.length == MONTHS_KEPT && i < 0) return null;
+        Month[] next = new Month[Math.min(months.length + 1, MONTHS_KEPT)];
+        Month created = new Month(month);
+        // keep the newest MONTHS_KEPT of the old buckets plus the new one
+        int drop = months.length + 1 - next.length;
+        int at = 0;
+        for (int j = drop; j <= i; j++) next[at++] = months[j];
+        next[at++] = created;
+        for (int j = Math.max(i + 1, drop); j < months.length; j++) next[at++] = months[j];
+        months = next;
+        return created;
+    }
+
+    // month bounds of the last lookup, so postings within a month skip the calendar maths
+    private static volatile long[] cachedMonth = { 0, 0, 0 };
+
+    static int monthOf(long time) {
+        long[] c = cachedMonth;
+        if (time >= c[0] && time < c[1]) return (int) c[2];
+        ZoneId zone = ZoneId.systemDefault();
+        LocalDate date = Instant.ofEpochMilli(time).atZone(zone).toLocalDate().withDayOfMonth(1);
+        ZonedDateTime start = date.atStartOfDay(zone);
+        int month = date.getYear() * 100 + date.getMonthValue();
+        cachedMonth = new long[] { start.toInstant().toEpochMilli(),
+                start.plusMonths(1).toInstant().toEpochMilli(), month };
+        return month;
+    }
+
+    void write(AccountFile.Output out) throws IOException {
+        out.writeByte(months.length);
+        for (Month m : months) {
+            out.writeInt(m.month);
+            out.writeLong(m.credits);
+            out.writeInt(m.creditCount);
+            out.writeLong(m.debits);
+            out.writeInt(m.debitCount);
+            out.writeLong(m.transfersIn);
+            out.writeInt(m.transferInCount);
+            out.writeLong(m.transfersOut);
+            out.writeInt(m.transferOutCount);
+        }
+    }
+
+    void read(AccountFile.Input in) throws IOException {
+        int n = in.readByte();
+        Month[] loaded = new Month[n];
+        for (int i = 0; i < n; i++) {
+            Month m = new Month(in.readInt());
+            m.credits = in.readLong();
+            m.creditCount = in.readInt();
+            m.debits = in.readLong();
+            m.debitCount = in.readInt();
+            m.transfersIn = in.readLong();
+            m.transferInCount = in.readInt();
+            m.transfersOut = in.readLong();
+            m.transferOutCount = in.readInt();
+            loaded[i] = m;
+        }
+        months = loaded;
+    }
+
+    // the same encoding in memory, for accounts kept off the heap
+    int encodedSize() {
+        return 1 + months.length * 52;
+    }
+
+    void write(ByteBuffer out) {
+        out.put((byte) months.length);
+        for (Month m : months) {
+            out.putInt(m.month);
+            out.putLong(m.credits);
+            out.putInt(m.creditCount);
+            out.putLong(m.debits);
+            out.putInt(m.debitCount);
+            out.putLong(m.transfersIn);
+            out.putInt(m.transferInCount);
+            out.putLong(m.transfersOut);
+            out.putInt(m.transferOutCount);
+        }
+    }
+
+    void read(ByteBuffer in) {
+        int n = in.get();
+        Month[] loaded = new Month[n];
+        for (int i = 0; i < n; i++) {
+            Month m = new Month(in.getInt());
+            m.credits = in.getLong();
+            m.creditCount = in.getInt();
+            m.debits = in.getLong();
+            m.debitCount = in.getInt();
+            m.transfersIn = in.getLong();
+            m.transferInCount = in.getInt();
+            m.transfersOut = in.getLong();
+            m.transferOutCount = in.getInt();
+            loaded[i] = m;
+        }
+        months = loaded;
+    }
+}
@@ -0,0 +1,348 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Account headers kept outside the Java heap
+ *
+ * Used by AccountTable when bank.offHeap is set: an account with nothing
+ * unsaved is encoded into a record outside the heap and its objects are
+ * dropped, so a book of tens of millions of accounts costs the collector a
+ * few primitive arrays instead of hundreds of millions of objects. The
+ * record is decoded into a fresh Account when something asks for it.
+ *
+ * The records live in a memory-mapped scratch file (accounts.parked), so
+ * the operating system keeps the ones in use in memory and can page the
+ * rest out: the book may be larger than RAM. The file is emptied when
+ * opened, as the records are rebuilt from accounts.db at every start.
+ *
+ * Records are bump-allocated from 64 MB mapped chunks and addressed by a
+ * long (chunk number and offset). A record is rewritten in place when it is
+ * parked again and still fits, otherwise a new one is allocated; the space
+ * of an outgrown record is only reclaimed on restart. Writers are
+ * serialized per account by the caller. Readers need no lock: each record
+ * starts with a version that is odd while it is being written, and a read
+ * that saw it change is retried.
+ *
+ * Record layout (native byte order):
+ *
+ *   version:int capacity:int historyFile:int historyCount:int
+ *   historyOffset:long balance:long seq:long historyLength:int
+ *   type:byte name phoneNumber pin monthlyStats
+ *
+ * The history file is the id StoredHistory registered for the channel the
+ * history is read from. The account number is not stored; it is the key.
+ *
+ * An account with unsaved changes is parked by writing its history back to
+ * a scratch history file (accounts.parked.<n>) first; the next save copies
+ * it into the store and relocates the record. A save retires the current
+ * scratch file before it starts, and the retired files are deleted once a
+ * save has succeeded, so a file lives for about one checkpoint interval.
+ */
+public class OffHeapAccounts {
+    private static final int CHUNK_SIZE = 64 << 20;
+    private static final int FIXED_SIZE = 45;
+    private static final int FILE_POS = 8, COUNT_POS = 12, OFFSET_POS = 16, BALANCE_POS = 24, LENGTH_POS = 40;
+    private static final Account.AccountType[] TYPES = Account.AccountType.values();
+    private static final VarHandle VERSION =
+            MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final File file;
+    private final FileChannel channel;
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    private int top = CHUNK_SIZE; // free offset in the last chunk
+    private long allocated;
+    // write-back histories: the file taking them, and retired ones still referenced
+    private FileChannel history;
+    private File historyFile;
+    private long historyTop;
+    private int historyFiles;
+    private final List<FileChannel> retired = new ArrayList<>();
+    private final List<File> retiredFiles = new ArrayList<>();
+
+    public OffHeapAccounts(File file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        // histories written back by an earlier run are in its journal
+        File[] left = file.getAbsoluteFile().getParentFile().listFiles((dir, name) -> name.startsWith(file.getName() + "."));
+        if (left != null) for (File f : left) f.delete();
+    }
+
+    /**
+     * Stores the account's header, over the record at the given address if
+     * it fits there (0 for none), and returns the record's address. The
+     * account's history must be on disk. Called with the account locked.
+     */
+    long store(Account a, long address) {
+        StoredHistory stored = a.getStoredHistory();
+        if (stored == null) throw new IllegalStateException("History of " + a.accountNumber + " is not saved");
+        byte[] name = a.name.getBytes(StandardCharsets.UTF_8);
+        byte[] phone = a.phoneNumber.getBytes(StandardCharsets.UTF_8);
+        byte[] pin = a.pin.getBytes(StandardCharsets.UTF_8);
+        int size = FIXED_SIZE + a.getMonthlyStats().encodedSize() + 6 + name.length + phone.length + pin.length;
+        ByteBuffer chunk = address == 0 ? null : chunk(address);
+        int at = (int) address;
+        if (chunk == null || chunk.getInt(at + 4) < size) {
+            address = allocate(size);
+            chunk = chunk(address);
+            at = (int) address;
+            chunk.putInt(at + 4, (size + 7) & ~7);
+        }
+        int version = (int) VERSION.getAcquire(chunk, at);
+        VERSION.setOpaque(chunk, at, version + 1);
+        VarHandle.storeStoreFence();
+        ByteBuffer out = chunk.duplicate().order(ByteOrder.nativeOrder());
+        out.position(at + FILE_POS);
+        out.putInt(StoredHistory.fileId(stored.channel));
+        out.putInt(stored.count);
+        out.putLong(stored.offset);
+        out.putLong(a.balance);
+        out.putLong(a.snapshotSeq);
+        out.putInt(stored.length);
+        out.put((byte) a.accountType.ordinal());
+        putString(out, name);
+        putString(out, phone);
+        putString(out, pin);
+        a.getMonthlyStats().write(out);
+        VERSION.setRelease(chunk, at, version + 2);
+        return address;
+    }
+
+    /**
+     * Writes the history to the scratch history file and returns where it
+     * is, for an account with unsaved changes to be parked with. Called with
+     * the account locked.
+     */
+    synchronized StoredHistory storeHistory(List<Transaction> txs) {
+        int length = 0;
+        ByteBuffer[] encoded = new ByteBuffer[txs.size()];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = txs.get(i).encode();
+            length += encoded[i].remaining();
+        }
+        try {
+            if (history == null) {
+                historyFile = new File(file.getPath() + "." + ++historyFiles);
+                history = FileChannel.open(historyFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                historyTop = 0;
+                StoredHistory.register(history);
+            }
+            long offset = historyTop;
+            for (ByteBuffer buf : encoded) {
+                while (buf.hasRemaining()) historyTop += history.write(buf, historyTop);
+            }
+            return new StoredHistory(history, offset, length, encoded.length);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to write back to " + historyFile, ex);
+        }
+    }
+
+    /**
+     * Has later write-backs go to a new scratch history file. Called as a
+     * save starts, which takes over every history written back so far.
+     */
+    synchronized void retireHistory() {
+        if (history == null) return;
+        retired.add(history);
+        retiredFiles.add(historyFile);
+        history = null;
+    }
+
+    /**
+     * Deletes the retired scratch history files, once a save has taken
+     * their histories over.
+     */
+    synchronized void dropRetiredHistory() {
+        for (FileChannel ch : retired) closeHistory(ch);
+        for (File f : retiredFiles) {
+            if (!f.delete()) System.err.println("Failed to delete " + f);
+        }
+        retired.clear();
+        retiredFiles.clear();
+    }
+
+    private void closeHistory(FileChannel ch) {
+        StoredHistory.unregister(ch);
+        try {
+            ch.close();
+        } catch (IOException ex) {
+            System.err.println("Failed to close scratch history: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Points the record at the account's history in another file. Called
+     * with the account locked.
+     */
+    void relocate(long address, StoredHistory stored) {
+        ByteBuffer chunk = chunk(address).duplicate().order(ByteOrder.nativeOrder());
+        int at = (int) address;
+        int version = (int) VERSION.getAcquire(chunk, at);
+        VERSION.setOpaque(chunk, at, version + 1);
+        VarHandle.storeStoreFence();
+        chunk.putInt(at + FILE_POS, StoredHistory.fileId(stored.channel));
+        chunk.putInt(at + COUNT_POS, stored.count);
+        chunk.putLong(at + OFFSET_POS, stored.offset);
+        chunk.putInt(at + LENGTH_POS, stored.length);
+        VERSION.setRelease(chunk, at, version + 2);
+    }
+
+    /**
+     * Decodes the record into a new Account with the given number.
+     */
+    Account load(long address, String accountNumber) {
+        ByteBuffer chunk = chunk(address);
+        int at = (int) address;
+        while (true) {
+            int version = (int) VERSION.getAcquire(chunk, at);
+            if ((version & 1) == 0) {
+                Account a = null;
+                RuntimeException failed = null;
+                try {
+                    a = decode(chunk, at, accountNumber);
+                } catch (RuntimeException ex) {
+                    failed = ex; // maybe torn by a rewrite, which the version shows
+                }
+                VarHandle.loadLoadFence();
+                if ((int) VERSION.getOpaque(chunk, at) == version) {
+                    if (failed != null) throw failed;
+                    return a;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Hands the record's name, phone number and balance to the visitor,
+     * without decoding the rest into an Account.
+     */
+    void visit(long address, String accountNumber, AccountTable.HeaderVisitor visitor) {
+        ByteBuffer chunk = chunk(address);
+        int at = (int) address;
+        while (true) {
+            int version = (int) VERSION.getAcquire(chunk, at);
+            if ((version & 1) == 0) {
+                String name = null, phone = null;
+                long balance = 0;
+                RuntimeException failed = null;
+                try {
+                    ByteBuffer in = chunk.duplicate().order(ByteOrder.nativeOrder());
+                    balance = in.getLong(at + BALANCE_POS);
+                    in.position(at + FIXED_SIZE);
+                    name = getString(in);
+                    phone = getString(in);
+                } catch (RuntimeException ex) {
+                    failed = ex; // maybe torn by a rewrite, which the version shows
+                }
+                VarHandle.loadLoadFence();
+                if ((int) VERSION.getOpaque(chunk, at) == version) {
+                    if (failed != null) throw failed;
+                    visitor.visit(accountNumber, name, phone, balance);
+                    return;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    private static Account decode(ByteBuffer chunk, int at, String accountNumber) {
+        ByteBuffer in = chunk.duplicate().order(ByteOrder.nativeOrder());
+        in.position(at + FILE_POS);
+        int file = in.getInt();
+        int count = in.getInt();
+        long offset = in.getLong();
+        long balance = in.getLong();
+        long seq = in.getLong();
+        int length = in.getInt();
+        int type = in.get();
+        String name = getString(in);
+        String phone = getString(in);
+        String pin = getString(in);
+        FileChannel channel = StoredHistory.channel(file);
+        if (channel == null) throw new IllegalStateException("History file of " + accountNumber + " is closed");
+        Account a = Account.restore(accountNumber, name, phone, pin, balance,
+                type >= 0 && type < TYPES.length ? TYPES[type] : Account.AccountType.SAVINGS);
+        a.snapshotSeq = seq;
+        a.getMonthlyStats().read(in);
+        a.attachHistory(new StoredHistory(channel, offset, length, count));
+        return a;
+    }
+
+    private static void putString(ByteBuffer out, byte[] b) {
+        out.putShort((short) b.length);
+        out.put(b);
+    }
+
+    private static String getString(ByteBuffer in) {
+        int len = in.getShort() & 0xFFFF;
+        byte[] b = new byte[len];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private ByteBuffer chunk(long address) {
+        return chunks[(int) (address >>> 32) - 1];
+    }
+
+    // 8-byte aligned so the version can be read atomically; chunk numbers
+    // start at 1 so no record sits at address 0
+    private synchronized long allocate(int size) {
+        size = (size + 7) & ~7;
+        if (top + size > CHUNK_SIZE) {
+            ByteBuffer[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+            try {
+                grown[chunks.length] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        (long) chunks.length * CHUNK_SIZE, CHUNK_SIZE).order(ByteOrder.nativeOrder());
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Failed to grow " + file, ex);
+            }
+            chunks = grown;
+            top = 0;
+        }
+        long address = (long) chunks.length << 32 | top;
+        top += size;
+        allocated += size;
+        return address;
+    }
+
+    /**
+     * Size of the scratch file, in bytes.
+     */
+    public synchronized long getReservedBytes() {
+        return (long) chunks.length * CHUNK_SIZE;
+    }
+
+    /**
+     * Bytes handed out to records, including outgrown ones.
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocated;
+    }
+
+    /**
+     * Closes and deletes the scratch files; nothing may be read after this.
+     */
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            System.err.println("Failed to close " + file + ": " + ex.getMessage());
+        }
+        if (!file.delete()) System.err.println("Failed to delete " + file);
+        retireHistory();
+        dropRetiredHistory();
+    }
+}
@@ -0,0 +1,286 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Account lookup index kept outside the Java heap
+ *
+ * Used by BankingService when bank.offHeap is set, in place of its phone
+ * and name indexes on the heap, whose strings and map nodes would cost a
+ * couple of hundred bytes per account however many accounts are parked.
+ * Each entry is a 64-bit key and an account slot (see AccountTable.index),
+ * 12 bytes in a memory-mapped scratch file sorted by key, then slot. Like
+ * accounts.parked the file is rebuilt at every start: entries added before
+ * build() are appended as they come and sorted once.
+ *
+ * A key need not identify its string (a phone number's is a hash, a name's
+ * its first eight bytes), so callers check the account itself for the
+ * entries a scan hands them. Keys compare as signed longs.
+ *
+ * Entries added after build() go to a sorted tail on the heap and are
+ * merged into the file once there are bank.indexTail of them (default
+ * 65536); add() says when that is due, and merge() is left to the caller
+ * to run where a pause does not matter. Safe for concurrent use.
+ */
+public class OffHeapIndex {
+    private static final int ENTRY = 12;
+    private static final int CHUNK_BITS = 22;
+    private static final int CHUNK_ENTRIES = 1 << CHUNK_BITS;
+    private static final int TAIL_LIMIT = Math.max(1, Integer.getInteger("bank.indexTail", 1 << 16));
+
+    private final File file;
+    private final FileChannel channel;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private ByteBuffer[] chunks = new ByteBuffer[0];
+    private int size; // entries in the file
+    private boolean built;
+    private long[] tailKeys = new long[16];
+    private int[] tailSlots = new int[16];
+    private int tailSize;
+
+    /**
+     * Visits the entries of a scan in order; returns false to stop it.
+     */
+    public interface Visitor {
+        boolean visit(long key, int slot);
+    }
+
+    public OffHeapIndex(File file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Adds an entry; returns true once the tail is due to be merged.
+     */
+    public boolean add(long key, int slot) {
+        lock.writeLock().lock();
+        try {
+            if (!built) {
+                reserve(size + 1);
+                put(size++, key, slot);
+                return false;
+            }
+            int at = tailSearch(key, slot);
+            if (at >= 0) return false;
+            at = -at - 1;
+            if (tailSize == tailKeys.length) {
+                tailKeys = Arrays.copyOf(tailKeys, tailSize * 2);
+                tailSlots = Arrays.copyOf(tailSlots, tailSize * 2);
+            }
+            System.arraycopy(tailKeys, at, tailKeys, at + 1, tailSize - at);
+            System.arraycopy(tailSlots, at, tailSlots, at + 1, tailSize - at);
+            tailKeys[at] = key;
+            tailSlots[at] = slot;
+            tailSize++;
+            return tailSize >= TAIL_LIMIT;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sorts the entries added so far; later ones go to the tail.
+     */
+    public void build() {
+        lock.writeLock().lock();
+        try {
+            if (built) return;
+            sort(0, size - 1);
+            built = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Hands the visitor every entry with a key from from to to, both
+     * included, in order.
+     */
+    public void scan(long from, long to, Visitor visitor) {
+        lock.readLock().lock();
+        try {
+            int i = lowerBound(from), j = -tailSearch(from, Integer.MIN_VALUE) - 1;
+            while (true) {
+                boolean inFile = i < size && key(i) <= to;
+                boolean inTail = j < tailSize && tailKeys[j] <= to;
+                if (!inFile && !inTail) return;
+                boolean fileFirst = inFile && (!inTail || compare(key(i), slot(i), tailKeys[j], tailSlots[j]) < 0);
+                boolean more = fileFirst ? visitor.visit(key(i), slot(i++)) : visitor.visit(tailKeys[j], tailSlots[j++]);
+                if (!more) return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Merges the tail into the file. Lookups wait while it runs.
+     */
+    public void merge() {
+        lock.writeLock().lock();
+        try {
+            if (tailSize == 0) return;
+            reserve(size + tailSize);
+            // from the back, so nothing is overwritten before it is moved
+            int i = size - 1, j = tailSize - 1;
+            for (int k = size + tailSize - 1; j >= 0; k--) {
+                if (i >= 0 && compare(key(i), slot(i), tailKeys[j], tailSlots[j]) > 0) {
+                    put(k, key(i), slot(i));
+                    i--;
+                } else {
+                    put(k, tailKeys[j], tailSlots[j]);
+                    j--;
+                }
+            }
+            size += tailSize;
+            tailSize = 0;
+            tailKeys = new long[16];
+            tailSlots = new int[16];
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Bytes the entries take in the file.
+     */
+    public long getFileBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) size * ENTRY;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Bytes the tail takes on the heap.
+     */
+    public long getHeapBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) tailKeys.length * (Long.BYTES + Integer.BYTES);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Closes and deletes the file; nothing may be read after this.
+     */
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            System.err.println("Failed to close " + file + ": " + ex.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (!file.delete()) System.err.println("Failed to delete " + file);
+    }
+
+    private static int compare(long k1, int s1, long k2, int s2) {
+        int c = Long.compare(k1, k2);
+        return c != 0 ? c : Integer.compare(s1, s2);
+    }
+
+    // position of the entry in the tail, or -(insertion point) - 1
+    private int tailSearch(long key, int slot) {
+        int lo = 0, hi = tailSize - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare(tailKeys[mid], tailSlots[mid], key, slot);
+            if (c < 0) lo = mid + 1;
+            else if (c > 0) hi = mid - 1;
+            else return mid;
+        }
+        return -lo - 1;
+    }
+
+    // first entry in the file with a key at or above the given one
+    private int lowerBound(long key) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (key(mid) < key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // quicksort in place, recursing into the smaller side
+    private void sort(int lo, int hi) {
+        while (hi - lo > 16) {
+            int mid = (lo + hi) >>> 1;
+            // median of three as the pivot
+            if (less(mid, lo)) swap(mid, lo);
+            if (less(hi, lo)) swap(hi, lo);
+            if (less(hi, mid)) swap(hi, mid);
+            long pivotKey = key(mid);
+            int pivotSlot = slot(mid);
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (compare(key(i), slot(i), pivotKey, pivotSlot) < 0) i++;
+                while (compare(key(j), slot(j), pivotKey, pivotSlot) > 0) j--;
+                if (i <= j) swap(i++, j--);
+            }
+            if (j - lo < hi - i) {
+                sort(lo, j);
+                lo = i;
+            } else {
+                sort(i, hi);
+                hi = j;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int j = i; j > lo && less(j, j - 1); j--) swap(j, j - 1);
+        }
+    }
+
+    private boolean less(int a, int b) {
+        return compare(key(a), slot(a), key(b), slot(b)) < 0;
+    }
+
+    private void swap(int a, int b) {
+        long key = key(a);
+        int slot = slot(a);
+        put(a, key(b), slot(b));
+        put(b, key, slot);
+    }
+
+    private long key(int i) {
+        return chunks[i >>> CHUNK_BITS].getLong((i & (CHUNK_ENTRIES - 1)) * ENTRY);
+    }
+
+    private int slot(int i) {
+        return chunks[i >>> CHUNK_BITS].getInt((i & (CHUNK_ENTRIES - 1)) * ENTRY + 8);
+    }
+
+    private void put(int i, long key, int slot) {
+        ByteBuffer chunk = chunks[i >>> CHUNK_BITS];
+        int at = (i & (CHUNK_ENTRIES - 1)) * ENTRY;
+        chunk.putLong(at, key);
+        chunk.putInt(at + 8, slot);
+    }
+
+    private void reserve(int entries) {
+        while (entries > (long) chunks.length * CHUNK_ENTRIES) {
+            ByteBuffer[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+            try {
+                grown[chunks.length] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        (long) chunks.length * CHUNK_ENTRIES * ENTRY, (long) CHUNK_ENTRIES * ENTRY);
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Failed to grow " + file, ex);
+            }
+            chunks = grown;
+        }
+    }
+}
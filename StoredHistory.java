@@ -0,0 +1,121 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Location of an account's transaction history inside accounts.db.
+ *
+ * Histories are only read when something asks for them. Decoded histories of
+ * unmodified accounts are kept in a bounded LRU cache sized by
+ * bank.historyCache (default 1024 accounts); an account that is changed keeps
+ * its own copy until the next snapshot takes it over.
+ *
+ * Open store files register their channels here under a number, which is
+ * how an account header kept off the heap (see OffHeapAccounts) refers to
+ * the file its history is in.
+ */
+public class StoredHistory {
+    private static final int CACHE_SIZE = Integer.getInteger("bank.historyCache", 1024);
+
+    private static final Map<Account, List<Transaction>> CACHE =
+            new LinkedHashMap<Account, List<Transaction>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Account, List<Transaction>> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private static final Map<Integer, FileChannel> CHANNELS = new ConcurrentHashMap<>();
+    private static final Map<FileChannel, Integer> FILE_IDS = new ConcurrentHashMap<>();
+    private static final AtomicInteger NEXT_FILE_ID = new AtomicInteger(1);
+
+    final FileChannel channel;
+    final long offset;
+    final int length;
+    final int count;
+
+    public StoredHistory(FileChannel channel, long offset, int length, int count) {
+        this.channel = channel;
+        this.offset = offset;
+        this.length = length;
+        this.count = count;
+    }
+
+    static void register(FileChannel channel) {
+        int id = NEXT_FILE_ID.getAndIncrement();
+        FILE_IDS.put(channel, id);
+        CHANNELS.put(id, channel);
+    }
+
+    static void unregister(FileChannel channel) {
+        Integer id = FILE_IDS.remove(channel);
+        if (id != null) CHANNELS.remove(id);
+    }
+
+    static int fileId(FileChannel channel) {
+        Integer id = FILE_IDS.get(channel);
+        if (id == null) throw new IllegalStateException("Store file is not open");
+        return id;
+    }
+
+    static FileChannel channel(int fileId) {
+        return CHANNELS.get(fileId);
+    }
+
+    /**
+     * Returns the history of the account, reading it from disk on a cache miss.
+     */
+    static List<Transaction> load(Account account, StoredHistory stored) {
+        synchronized (CACHE) {
+            List<Transaction> cached = CACHE.get(account);
+            if (cached != null) return cached;
+        }
+        List<Transaction> txs = stored.read();
+        synchronized (CACHE) {
+            CACHE.put(account, txs);
+        }
+        return txs;
+    }
+
+    static void cache(Account account, List<Transaction> txs) {
+        synchronized (CACHE) {
+            CACHE.put(account, txs);
+        }
+    }
+
+    static void evict(Account account) {
+        synchronized (CACHE) {
+            CACHE.remove(account);
+        }
+    }
+
+    /**
+     * Raw encoded bytes, so a snapshot can copy an unloaded history without decoding it.
+     */
+    ByteBuffer readBytes() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, offset + buf.position()) < 0) throw new EOFException();
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private List<Transaction> read() {
+        try {
+            ByteBuffer buf = readBytes();
+            List<Transaction> txs = new TransactionHistory(Math.max(count, 1));
+            for (int i = 0; i < count; i++) txs.add(Transaction.decode(buf));
+            return txs;
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to read transaction history", ex);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One entry of an account's transaction history
+ *
+ * Amounts and balances are held in paise. The familiar
+ * "yyyy-MM-dd HH:mm:ss - Deposit ₹1,234.00 (reason) - Bal: ₹..." line is only
+ * produced by toString(), for display.
+ */
+public class Transaction {
+    private static final DateTimeFormatter DT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final Type[] TYPES = Type.values();
+
+    public enum Type {
+        OPENED, DEPOSIT, WITHDRAW, TRANSFER_OUT, TRANSFER_IN, PIN_CHANGED, OTHER
+    }
+
+    public final long time;           // epoch millis
+    public final Type type;
+    public final long amount;         // paise
+    public final String counterparty; // other account for transfers, account type for OPENED, text for OTHER
+    public final String reason;
+    public final long balance;        // resulting balance in paise
+
+    public Transaction(long time, Type type, long amount, String counterparty, String reason, long balance) {
+        this.time = time;
+        this.type = type;
+        this.amount = amount;
+        this.counterparty = counterparty == null ? "" : counterparty;
+        this.reason = reason == null ? "" : reason;
+        this.balance = balance;
+    }
+
+    public String describe() {
+        switch (type) {
+            case OPENED: return "Account opened - " + counterparty;
+            case DEPOSIT: return "Deposit ₹" + Money.format(amount);
+            case WITHDRAW: return "Withdraw ₹" + Money.format(amount);
+            case TRANSFER_OUT: return "Transfer to " + counterparty + " ₹" + Money.format(amount);
+            case TRANSFER_IN: return "Transfer from " + counterparty + " ₹" + Money.format(amount);
+            case PIN_CHANGED: return "PIN changed";
+            default: return counterparty;
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (time == Long.MIN_VALUE) return counterparty; // unparseable legacy line, kept verbatim
+        String t = DT.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()))
+                + " - " + describe();
+        if (!reason.isEmpty()) {
+            t += " (" + reason + ")";
+        }
+        return t + " - Bal: ₹" + Money.format(balance);
+    }
+
+    /**
+     * The same entry with another resulting balance, for a credit to a hot
+     * account, whose balance is only known once it is folded in.
+     */
+    Transaction withBalance(long newBalance) {
+        return new Transaction(time, type, amount, counterparty, reason, newBalance);
+    }
+
+    // Binary form, shared by accounts.db and the journal:
+    // time:long type:byte amount:long counterparty reason balance:long
+
+    public ByteBuffer encode() {
+        byte[] cp = bytes(counterparty);
+        byte[] rs = bytes(reason);
+        ByteBuffer buf = ByteBuffer.allocate(8 + 1 + 8 + 2 + cp.length + 2 + rs.length + 8);
+        buf.putLong(time).put((byte) type.ordinal()).putLong(amount)
+                .putShort((short) cp.length).put(cp)
+                .putShort((short) rs.length).put(rs)
+                .putLong(balance);
+        buf.flip();
+        return buf;
+    }
+
+    // lengths are stored in two bytes
+    private static byte[] bytes(String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        if (b.length > 0xFFFF) throw new IllegalArgumentException("String too long to store: " + b.length + " bytes");
+        return b;
+    }
+
+    public static Transaction decode(ByteBuffer buf) {
+        long time = buf.getLong();
+        int type = buf.get();
+        long amount = buf.getLong();
+        String counterparty = AccountFile.getString(buf);
+        String reason = AccountFile.getString(buf);
+        long balance = buf.getLong();
+        return new Transaction(time, type >= 0 && type < TYPES.length ? TYPES[type] : Type.OTHER,
+                amount, counterparty, reason, balance);
+    }
+
+    private static final Pattern LINE = Pattern.compile(
+            "(\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}) - (.*?)(?: \\((.*)\\))? - Bal: ₹(-?[0-9,]+\\.[0-9]{2})");
+    private static final Pattern AMOUNT = Pattern.compile("(Deposit|Withdraw) ₹(-?[0-9,]+\\.[0-9]{2})");
+    private static final Pattern TRANSFER = Pattern.compile("Transfer (to|from) (\\S+) ₹(-?[0-9,]+\\.[0-9]{2})");
+
+    /**
+     * Parses a preformatted history line from an older store. Only used when
+     * migrating; lines that do not match are kept verbatim as OTHER.
+     */
+    public static Transaction parse(String line) {
+        Matcher m = LINE.matcher(line);
+        if (!m.matches()) return new Transaction(Long.MIN_VALUE, Type.OTHER, 0, line, "", 0);
+        long time = LocalDateTime.parse(m.group(1), DT).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        String desc = m.group(2);
+        String reason = m.group(3);
+        long balance = Money.parse(m.group(4));
+        Matcher a;
+        if ((a = AMOUNT.matcher(desc)).matches()) {
+            Type type = a.group(1).equals("Deposit") ? Type.DEPOSIT : Type.WITHDRAW;
+            return new Transaction(time, type, Money.parse(a.group(2)), "", reason, balance);
+        }
+        if ((a = TRANSFER.matcher(desc)).matches()) {
+            Type type = a.group(1).equals("to") ? Type.TRANSFER_OUT : Type.TRANSFER_IN;
+            return new Transaction(time, type, Money.parse(a.group(3)), a.group(2), reason, balance);
+        }
+        if (desc.startsWith("Account opened - ")) {
+            return new Transaction(time, Type.OPENED, 0, desc.substring("Account opened - ".length()), reason, balance);
+        }
+        if (desc.equals("PIN changed")) {
+            return new Transaction(time, Type.PIN_CHANGED, 0, "", reason, balance);
+        }
+        return new Transaction(time, Type.OTHER, 0, desc, reason, balance);
+    }
+}
@@ -0,0 +1,224 @@
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed-capacity circular buffer of an account's transactions
+ *
+ * Index 0 is the most recent entry and iteration runs newest first, like the
+ * list it replaces. push() records a new entry in O(1); once the buffer is
+ * full it overwrites the oldest one. add() appends at the old end and is used
+ * when loading a stored history, which is written newest first. The backing
+ * arrays grow by doubling up to the capacity, so quiet accounts stay small.
+ *
+ * Entries are not kept as Transaction objects but packed into parallel
+ * primitive arrays, 32 bytes an entry: amount and balance, the time as
+ * seconds from the first entry's time plus a millisecond field, the type,
+ * and the counterparty and reason as codes. Counterparties that are account
+ * numbers are stored as the number; other strings are kept once each in the
+ * history's own dictionary, which goes with it. When the dictionary fills
+ * up it is rebuilt from the entries still held, so strings of dropped
+ * entries do not pile up. get() decodes a fresh Transaction, so entries are
+ * only materialised for display and saving. The rare entry that does not
+ * pack (a time over 68 years off, or none) is kept whole on the side.
+ *
+ * The capacity defaults to 200 entries and can be set with bank.historyCapacity.
+ */
+public class TransactionHistory extends AbstractList<Transaction> {
+    public static final int DEFAULT_CAPACITY = Math.max(1, Integer.getInteger("bank.historyCapacity", 200));
+
+    private static final int INITIAL_SIZE = 8;
+    private static final Transaction.Type[] TYPES = Transaction.Type.values();
+
+    // meta: type in the low 3 bits, then milliseconds, then the unpacked flag
+    private static final int TYPE_MASK = 0x7;
+    private static final int MILLIS_SHIFT = 3;
+    private static final int UNPACKED = 1 << 13;
+
+    // strings looked for among the newest codes before a new one is added;
+    // a repeat further back only costs a slot until the next rebuild
+    private static final int RECENT = 8;
+
+    private final int capacity;
+    private long base = Long.MIN_VALUE; // time the second offsets count from, set by the first entry
+    private long[] amounts;
+    private long[] balances;
+    private int[] seconds;
+    private int[] meta;
+    private int[] parties;
+    private int[] reasons;
+    private Transaction[] unpacked; // only allocated once an entry needs it
+    private volatile String[] strings = { "" }; // code 0 is the empty string
+    private int stringCount = 1;
+    private int head; // index of the newest entry
+    private int size;
+
+    public TransactionHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TransactionHistory(int capacity) {
+        this.capacity = capacity;
+        allocate(Math.min(capacity, INITIAL_SIZE));
+    }
+
+    /**
+     * Copy of another history, newest first, keeping at most this capacity.
+     */
+    public TransactionHistory(List<Transaction> source) {
+        this(DEFAULT_CAPACITY);
+        for (Transaction t : source) {
+            if (size == capacity) break;
+            add(t);
+        }
+    }
+
+    private void allocate(int length) {
+        amounts = new long[length];
+        balances = new long[length];
+        seconds = new int[length];
+        meta = new int[length];
+        parties = new int[length];
+        reasons = new int[length];
+    }
+
+    /**
+     * Records a new most recent entry, dropping the oldest when full.
+     */
+    public void push(Transaction t) {
+        if (size == amounts.length && size < capacity) grow();
+        head = head + 1 == amounts.length ? 0 : head + 1;
+        store(head, t);
+        if (size < amounts.length) size++;
+    }
+
+    /**
+     * Appends an entry older than all present ones; ignored when full.
+     */
+    @Override
+    public boolean add(Transaction t) {
+        if (size == capacity) return false;
+        if (size == amounts.length) grow();
+        int i = head - size;
+        store(i < 0 ? i + amounts.length : i, t);
+        size++;
+        return true;
+    }
+
+    // re-lay the entries newest first from index 0 into larger arrays
+    private void grow() {
+        int length = Math.min(capacity, amounts.length * 2);
+        long[] a = amounts, b = balances;
+        int[] s = seconds, m = meta, p = parties, r = reasons;
+        Transaction[] u = unpacked;
+        allocate(length);
+        if (u != null) unpacked = new Transaction[length];
+        for (int i = 0; i < size; i++) {
+            int from = slot(i, a.length), to = size - 1 - i;
+            amounts[to] = a[from];
+            balances[to] = b[from];
+            seconds[to] = s[from];
+            meta[to] = m[from];
+            parties[to] = p[from];
+            reasons[to] = r[from];
+            if (u != null) unpacked[to] = u[from];
+        }
+        head = size - 1;
+    }
+
+    private int slot(int index, int length) {
+        int i = head - index;
+        return i < 0 ? i + length : i;
+    }
+
+    private void store(int slot, Transaction t) {
+        if (unpacked != null) unpacked[slot] = null;
+        if (base == Long.MIN_VALUE && t.time != Long.MIN_VALUE) base = t.time - Math.floorMod(t.time, 1000L);
+        long secs = t.time == Long.MIN_VALUE ? Long.MIN_VALUE : Math.floorDiv(t.time - base, 1000L);
+        // the entry it replaces no longer holds any strings
+        parties[slot] = 0;
+        reasons[slot] = 0;
+        if (secs < Integer.MIN_VALUE || secs > Integer.MAX_VALUE) {
+            if (unpacked == null) unpacked = new Transaction[amounts.length];
+            unpacked[slot] = t;
+            meta[slot] = UNPACKED;
+            return;
+        }
+        meta[slot] = 0;
+        amounts[slot] = t.amount;
+        balances[slot] = t.balance;
+        seconds[slot] = (int) secs;
+        // each stored as soon as it is coded, as coding the next may rebuild the dictionary
+        int index = AccountTable.index(t.counterparty);
+        parties[slot] = index >= 0 ? -(index + AccountTable.FIRST_NUMBER) : code(t.counterparty);
+        reasons[slot] = code(t.reason);
+        meta[slot] = t.type.ordinal() | (int) Math.floorMod(t.time, 1000L) << MILLIS_SHIFT;
+    }
+
+    // code of s in the dictionary, added if not among the newest
+    private int code(String s) {
+        if (s.isEmpty()) return 0;
+        String[] table = strings;
+        for (int c = stringCount - 1; c > 0 && c >= stringCount - RECENT; c--) {
+            if (table[c].equals(s)) return c;
+        }
+        if (stringCount == table.length) table = rebuild();
+        table[stringCount] = s;
+        return stringCount++;
+    }
+
+    // keeps the strings entries still refer to, each once, and renumbers them.
+    // The table never shrinks, so a code read by an unlocked reader just
+    // before a rebuild still falls inside the one it reads next.
+    private String[] rebuild() {
+        String[] old = strings;
+        String[] kept = new String[old.length];
+        Map<String, Integer> codes = new HashMap<>();
+        codes.put("", 0);
+        kept[0] = "";
+        for (int i = 0; i < amounts.length; i++) {
+            if ((meta[i] & UNPACKED) != 0) continue;
+            if (parties[i] > 0) parties[i] = keep(old[parties[i]], codes, kept);
+            if (reasons[i] > 0) reasons[i] = keep(old[reasons[i]], codes, kept);
+        }
+        stringCount = codes.size();
+        // room for at least as many new strings as were kept
+        String[] table = stringCount * 2 > kept.length ? Arrays.copyOf(kept, stringCount * 2) : kept;
+        strings = table;
+        return table;
+    }
+
+    private static int keep(String s, Map<String, Integer> codes, String[] kept) {
+        Integer code = codes.get(s);
+        if (code == null) {
+            code = codes.size();
+            codes.put(s, code);
+            kept[code] = s;
+        }
+        return code;
+    }
+
+    @Override
+    public Transaction get(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        int i = slot(index, amounts.length);
+        int m = meta[i];
+        if ((m & UNPACKED) != 0) return unpacked[i];
+        int party = parties[i];
+        String[] table = strings;
+        return new Transaction(base + seconds[i] * 1000L + (m >>> MILLIS_SHIFT),
+                TYPES[m & TYPE_MASK], amounts[i],
+                party < 0 ? Integer.toString(-party) : table[party], table[reasons[i]], balances[i]);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
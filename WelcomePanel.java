@@ -7,6 +7,9 @@ import java.awt.geom.RoundRectangle2D;
 public class WelcomePanel extends JPanel {
     private RoundedButton btnLogin;
     private RoundedButton btnCreate;
+    private JLabel loadingLabel;
+    private JProgressBar loadingBar;
+    private JPanel loadingPanel;
 
     public WelcomePanel(ActionListener loginAction, ActionListener createAction) {
         initUI(loginAction, createAction);
@@ -81,6 +84,37 @@ public class WelcomePanel extends JPanel {
 
         btnPanel.add(btnLogin);
         btnPanel.add(btnCreate);
-        add(btnPanel, BorderLayout.SOUTH);
+
+        // shown while the accounts load; the buttons work meanwhile
+        loadingLabel = new JLabel(" ", SwingConstants.CENTER);
+        loadingLabel.setFont(new Font("SansSerif", Font.PLAIN, 12));
+        loadingLabel.setForeground(new Color(90, 90, 90));
+        loadingBar = new JProgressBar();
+        loadingBar.setIndeterminate(true);
+        loadingBar.setPreferredSize(new Dimension(240, 6));
+        JPanel barPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 0, 4));
+        barPanel.setOpaque(false);
+        barPanel.add(loadingBar);
+        loadingPanel = new JPanel(new BorderLayout());
+        loadingPanel.setOpaque(false);
+        loadingPanel.setBorder(new EmptyBorder(0, 0, 15, 0));
+        loadingPanel.add(loadingLabel, BorderLayout.NORTH);
+        loadingPanel.add(barPanel, BorderLayout.SOUTH);
+        loadingPanel.setVisible(false);
+
+        JPanel southPanel = new JPanel(new BorderLayout());
+        southPanel.setOpaque(false);
+        southPanel.add(btnPanel, BorderLayout.CENTER);
+        southPanel.add(loadingPanel, BorderLayout.SOUTH);
+        add(southPanel, BorderLayout.SOUTH);
+    }
+
+    /**
+     * Shows what is loading, or hides the loading line when status is null.
+     */
+    public void setLoadingStatus(String status) {
+        loadingPanel.setVisible(status != null);
+        loadingBar.setIndeterminate(status != null);
+        if (status != null) loadingLabel.setText(status);
     }
 }
\ No newline at end of file
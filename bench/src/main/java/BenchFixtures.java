@@ -0,0 +1,364 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Operations under benchmark, handed to the JMH classes in package bench
+ *
+ * JMH will not generate code for benchmarks in the default package, and a
+ * named package cannot refer to the default-package core, so the benchmarks
+ * look these factories up by reflection once per trial and then only call
+ * plain Runnable / Supplier / LongSupplier objects.
+ */
+public class BenchFixtures {
+    private BenchFixtures() { }
+
+    private static Account account(String number) {
+        return new Account(number, "Bench " + number, "9000000000", "1234", 1_000_000_000_00L, Account.AccountType.SAVINGS);
+    }
+
+    // Account-level operations on one in-memory account
+
+    public static Runnable addTransaction() {
+        Account a = account("1001");
+        return () -> a.addTransaction(Transaction.Type.DEPOSIT, 100, "", "bench");
+    }
+
+    public static Runnable deposit() {
+        Account a = account("1001");
+        return () -> a.deposit(100, "bench");
+    }
+
+    public static Runnable withdraw() {
+        Account a = account("1001");
+        return () -> a.withdraw(100, "bench");
+    }
+
+    public static Runnable transferTo() {
+        Account a = account("1001");
+        Account b = account("1002");
+        return () -> a.transferTo(b, 100, "bench");
+    }
+
+    // Credits from many threads to one account, as BankingService takes them
+
+    /**
+     * Credits to a hot account under the shared side of its lock, folded
+     * now and then as a debit or snapshot would.
+     */
+    public static Runnable hotCredit() {
+        Account a = account("1001");
+        a.setHot(true);
+        return credits(a, a.hotLock());
+    }
+
+    /**
+     * The same under the shared side of a ReentrantReadWriteLock, whose
+     * reader count is one word every credit updates.
+     */
+    public static Runnable hotCreditReadWriteLock() {
+        Account a = account("1001");
+        a.setHot(true);
+        return credits(a, new ReentrantReadWriteLock());
+    }
+
+    /**
+     * Credits to an ordinary account under one lock, like a stripe.
+     */
+    public static Runnable lockedCredit() {
+        Account a = account("1001");
+        ReentrantLock lock = new ReentrantLock();
+        return () -> {
+            lock.lock();
+            try {
+                a.credit(Transaction.Type.DEPOSIT, 100, "", "");
+            } finally {
+                lock.unlock();
+            }
+        };
+    }
+
+    // Postings to one account from many threads, against the bare balance
+    // updates in BalanceUpdateBenchmark
+
+    /**
+     * What the stripe lock covers in a posting: a deposit and a withdrawal
+     * with their history entries and journal records, under one lock.
+     */
+    public static Runnable lockedPosting() {
+        Account a = account("1001");
+        ReentrantLock lock = new ReentrantLock();
+        return () -> {
+            lock.lock();
+            try {
+                a.deposit(100, "bench");
+                new Journal.Record().post(a).toByteArray();
+            } finally {
+                lock.unlock();
+            }
+            lock.lock();
+            try {
+                a.withdraw(100, "bench");
+                new Journal.Record().post(a).toByteArray();
+            } finally {
+                lock.unlock();
+            }
+        };
+    }
+
+    /**
+     * A deposit and a withdrawal on one account through the service, the
+     * journal commit included.
+     */
+    public static Runnable servicePosting(Object service) {
+        BankingService s = (BankingService) service;
+        Account a = s.createAccount("bench", "1234");
+        s.deposit(a, 1_000_000_00L, "");
+        return () -> {
+            s.deposit(a, 100, "bench");
+            s.withdraw(a, 100, "bench");
+        };
+    }
+
+    private static Runnable credits(Account a, ReadWriteLock lock) {
+        Lock shared = lock.readLock();
+        Lock exclusive = lock.writeLock();
+        return () -> {
+            shared.lock();
+            try {
+                a.credit(Transaction.Type.DEPOSIT, 100, "", "");
+            } finally {
+                shared.unlock();
+            }
+            if (ThreadLocalRandom.current().nextInt(1024) == 0) {
+                exclusive.lock();
+                try {
+                    a.fold();
+                } finally {
+                    exclusive.unlock();
+                }
+            }
+        };
+    }
+
+    // A bank of n accounts in a fresh directory
+
+    /**
+     * Writes a snapshot of n accounts, each with a couple of postings this
+     * month, and returns its directory.
+     */
+    public static File createBank(int n) {
+        try {
+            File dir = Files.createTempDirectory("bank-bench").toFile();
+            List<Account> accounts = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) accounts.add(bankAccount(i));
+            AccountFile.write(new File(dir, "accounts.db"), 1, accounts).close();
+            return dir;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * As createBank, but each account is made as the file is written and
+     * dropped after, so a book far larger than the heap can be written.
+     */
+    public static File createLargeBank(int n) {
+        try {
+            File dir = Files.createTempDirectory("bank-bench").toFile();
+            Collection<Account> accounts = new AbstractCollection<Account>() {
+                @Override
+                public Iterator<Account> iterator() {
+                    return new Iterator<Account>() {
+                        private int i;
+
+                        @Override
+                        public boolean hasNext() {
+                            return i < n;
+                        }
+
+                        @Override
+                        public Account next() {
+                            Account a = bankAccount(i++);
+                            a.parked = true; // so the writer does not hold on to it
+                            return a;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return n;
+                }
+            };
+            AccountFile.write(new File(dir, "accounts.db"), 1, accounts).close();
+            return dir;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static Account bankAccount(int i) {
+        Account a = new Account(String.valueOf(AccountTable.FIRST_NUMBER + i), "Bench " + i, String.valueOf(9_000_000_000L + i), "1234", 0,
+                Account.AccountType.SAVINGS);
+        a.deposit(100_00 + i % 1000, "salary");
+        a.withdraw(50_00, "");
+        return a;
+    }
+
+    public static Object open(File dir) {
+        return new BankingService(dir);
+    }
+
+    public static void close(Object service) {
+        ((BankingService) service).close();
+    }
+
+    public static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    public static Supplier<Object> authenticate(Object service, int n) {
+        BankingService s = (BankingService) service;
+        int[] next = { 0 };
+        return () -> {
+            int i = next[0] = (next[0] + 7919) % n;
+            return s.authenticate(String.valueOf(AccountTable.FIRST_NUMBER + i), "1234");
+        };
+    }
+
+    /**
+     * Looks up a random one of the n accounts per run and deposits into
+     * every 64th, like tellers and the API going about a large book.
+     */
+    public static Runnable touch(Object service, int n, long seed) {
+        BankingService s = (BankingService) service;
+        Random r = new Random(seed);
+        int[] runs = { 0 };
+        return () -> {
+            Account a = s.getAccount(AccountTable.FIRST_NUMBER + r.nextInt(n));
+            if (++runs[0] % 64 == 0) s.deposit(a, 100, "");
+        };
+    }
+
+    public static long offHeapIndexBytes(Object service) {
+        return ((BankingService) service).getOffHeapIndexBytes();
+    }
+
+    public static Runnable saveAccounts(Object service) {
+        return ((BankingService) service)::saveAccounts;
+    }
+
+    /**
+     * Deposits into the next count of the n accounts per run, so the save
+     * after it has that many changed accounts to write.
+     */
+    public static Runnable dirty(Object service, int n, int count) {
+        BankingService s = (BankingService) service;
+        int[] next = { 0 };
+        return () -> {
+            for (int i = 0; i < count; i++) {
+                next[0] = (next[0] + 1) % n;
+                s.deposit(s.getAccount(AccountTable.FIRST_NUMBER + next[0]), 100, "");
+            }
+        };
+    }
+
+    /**
+     * Rewrites every account as a full snapshot, as compaction does.
+     */
+    public static Runnable saveFull(Object service) {
+        BankingService s = (BankingService) service;
+        return () -> s.reshard(s.getShards());
+    }
+
+    /**
+     * Opens and closes the bank in dir, returning the number of accounts loaded.
+     */
+    public static LongSupplier loadAccounts(File dir) {
+        return () -> {
+            BankingService s = new BankingService(dir);
+            int n = s.getAccountCount();
+            s.close();
+            return n;
+        };
+    }
+
+    /**
+     * This month's money in for a rotating account, as the dashboard reads it.
+     */
+    public static LongSupplier monthlyFromStats(Object service, int n) {
+        BankingService s = (BankingService) service;
+        Account[] accounts = s.getAllAccounts().values().toArray(new Account[0]);
+        int[] next = { 0 };
+        return () -> {
+            MonthlyStats.Month m = accounts[next[0] = (next[0] + 7919) % n].getMonthlyStats().current();
+            return m == null ? 0 : m.received();
+        };
+    }
+
+    /**
+     * The same figure by scanning the history, as the dashboard used to.
+     */
+    public static LongSupplier monthlyFromHistory(Object service, int n) {
+        BankingService s = (BankingService) service;
+        Account[] accounts = s.getAllAccounts().values().toArray(new Account[0]);
+        int[] next = { 0 };
+        return () -> {
+            Account a = accounts[next[0] = (next[0] + 7919) % n];
+            int month = MonthlyStats.monthOf(System.currentTimeMillis());
+            long total = 0;
+            for (Transaction t : a.getTransactions()) {
+                if (t.time == Long.MIN_VALUE || MonthlyStats.monthOf(t.time) != month) continue;
+                if (t.type == Transaction.Type.DEPOSIT || t.type == Transaction.Type.TRANSFER_IN) total += t.amount;
+            }
+            return total;
+        };
+    }
+
+    // Heap held by transaction histories
+
+    private static final String[] REASONS = { "", "salary", "rent", "groceries", "fuel", "emi", "school fees" };
+
+    /**
+     * n histories of the given length, as lists of Transaction objects like
+     * the old in-memory form or as packed TransactionHistory buffers. Strings
+     * are fresh copies, as decoding them from disk or the journal yields.
+     */
+    public static Object histories(int n, int entries, boolean packed) {
+        Random r = new Random(42);
+        long time = System.currentTimeMillis() - entries * 3_600_000L;
+        Object[] all = new Object[n];
+        for (int i = 0; i < n; i++) {
+            List<Transaction> h = packed ? new TransactionHistory(entries) : new ArrayList<>(entries);
+            long balance = 0;
+            for (int e = 0; e < entries; e++) {
+                Transaction.Type type = Transaction.Type.values()[1 + r.nextInt(4)];
+                long amount = 100 + r.nextInt(1_000_000);
+                balance += type == Transaction.Type.DEPOSIT || type == Transaction.Type.TRANSFER_IN ? amount : -amount;
+                String party = type == Transaction.Type.TRANSFER_IN || type == Transaction.Type.TRANSFER_OUT
+                        ? String.valueOf(AccountTable.FIRST_NUMBER + r.nextInt(n)) : "";
+                h.add(new Transaction(time + e * 3_600_000L + r.nextInt(1000), type, amount, party,
+                        new String(REASONS[r.nextInt(REASONS.length)]), balance));
+            }
+            all[i] = h;
+        }
+        return all;
+    }
+}
@@ -0,0 +1,57 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single-account operations on Account, without storage.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountBenchmark {
+    private Runnable addTransaction;
+    private Runnable deposit;
+    private Runnable withdraw;
+    private Runnable transferTo;
+
+    @Setup
+    public void setup() {
+        addTransaction = Core.call("addTransaction");
+        deposit = Core.call("deposit");
+        withdraw = Core.call("withdraw");
+        transferTo = Core.call("transferTo");
+    }
+
+    @Benchmark
+    public void addTransaction() {
+        addTransaction.run();
+    }
+
+    @Benchmark
+    public void deposit() {
+        deposit.run();
+    }
+
+    @Benchmark
+    public void withdraw() {
+        withdraw.run();
+    }
+
+    @Benchmark
+    public void transferTo() {
+        transferTo.run();
+    }
+}
@@ -0,0 +1,105 @@
+package bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Many threads depositing to and withdrawing from one account, each
+ * withdrawal checking the funds in the same step. cas and locked update a
+ * bare balance, with a compare-and-set loop and under a lock; lockedPosting
+ * does all the stripe lock covers in a posting (balance, history entry and
+ * journal record) and servicePosting goes through BankingService, journal
+ * commit included. How much of the real path the balance update is shows
+ * how much replacing the lock with CAS could gain there.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class BalanceUpdateBenchmark {
+    private final AtomicLong casBalance = new AtomicLong(1_000_000_00L);
+    private final ReentrantLock lock = new ReentrantLock();
+    private long lockedBalance = 1_000_000_00L;
+    private Runnable lockedPosting;
+
+    @State(Scope.Benchmark)
+    public static class Bank {
+        File dir;
+        Object service;
+        Runnable posting;
+
+        @Setup
+        public void setup() {
+            dir = Core.call("createBank", 1);
+            service = Core.call("open", dir);
+            posting = Core.call("servicePosting", service);
+        }
+
+        @TearDown
+        public void tearDown() {
+            Core.call("close", service);
+            Core.call("delete", dir);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        lockedPosting = Core.call("lockedPosting");
+    }
+
+    @Benchmark
+    public long cas() {
+        casBalance.getAndAdd(100);
+        long current;
+        do {
+            current = casBalance.get();
+            if (current < 100) return -1;
+        } while (!casBalance.compareAndSet(current, current - 100));
+        return current - 100;
+    }
+
+    @Benchmark
+    public long locked() {
+        lock.lock();
+        try {
+            lockedBalance += 100;
+        } finally {
+            lock.unlock();
+        }
+        lock.lock();
+        try {
+            if (lockedBalance < 100) return -1;
+            lockedBalance -= 100;
+            return lockedBalance;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Benchmark
+    public void lockedPosting() {
+        lockedPosting.run();
+    }
+
+    @Benchmark
+    public void servicePosting(Bank bank) {
+        bank.posting.run();
+    }
+}
@@ -0,0 +1,74 @@
+package bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups and dashboard figures on a loaded bank of 1k to 1M accounts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class BankingServiceBenchmark {
+    @Param({ "1000", "100000", "1000000" })
+    public int accounts;
+
+    private File dir;
+    private Object service;
+    private Supplier<Object> authenticate;
+    private LongSupplier monthlyFromStats;
+    private LongSupplier monthlyFromHistory;
+
+    @Setup
+    public void setup() {
+        dir = Core.call("createBank", accounts);
+        service = Core.call("open", dir);
+        authenticate = Core.call("authenticate", service, accounts);
+        monthlyFromStats = Core.call("monthlyFromStats", service, accounts);
+        monthlyFromHistory = Core.call("monthlyFromHistory", service, accounts);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Core.call("close", service);
+        Core.call("delete", dir);
+    }
+
+    @Benchmark
+    public Object authenticate() {
+        return authenticate.get();
+    }
+
+    /**
+     * DashboardPanel.calculateMonthlyDeposits: the running monthly totals.
+     */
+    @Benchmark
+    public long monthlyDepositsFromStats() {
+        return monthlyFromStats.getAsLong();
+    }
+
+    /**
+     * The same figure by scanning the history, for comparison.
+     */
+    @Benchmark
+    public long monthlyDepositsFromHistory() {
+        return monthlyFromHistory.getAsLong();
+    }
+}
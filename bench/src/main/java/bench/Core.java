@@ -0,0 +1,25 @@
+package bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Calls the factories in the default-package BenchFixtures.
+ */
+final class Core {
+    private Core() { }
+
+    @SuppressWarnings("unchecked")
+    static <T> T call(String name, Object... args) {
+        try {
+            for (Method m : Class.forName("BenchFixtures").getMethods()) {
+                if (m.getName().equals(name) && m.getParameterCount() == args.length) return (T) m.invoke(null, args);
+            }
+            throw new IllegalArgumentException("No fixture " + name);
+        } catch (InvocationTargetException ex) {
+            throw new IllegalStateException(ex.getCause());
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
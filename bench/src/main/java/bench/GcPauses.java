@@ -0,0 +1,108 @@
+package bench;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * GC pauses while a large book is in use, as the account count grows
+ *
+ *   java -Dbank.offHeap=true -Xmx8g -cp bench/target/benchmarks.jar bench.GcPauses [seconds] [accounts...]
+ *
+ * For each count, writes a book of that many accounts, opens it, lets a few
+ * threads look accounts up and post to them for the given time (default
+ * 30 s) and reports the pauses seen meanwhile. It then reports the heap
+ * still in use after a full collection, the phone and name indexes included
+ * when they are on the heap, and the size of the off-heap indexes. Defaults
+ * to 1, 10 and 50 million accounts. Run it again without bank.offHeap to compare with every
+ * account on the heap, which needs a far larger -Xmx. The 50 million book
+ * takes several GB of disk in the temporary directory.
+ */
+public final class GcPauses {
+    private static final int THREADS = 4;
+    private static final List<Long> pauses = Collections.synchronizedList(new ArrayList<>());
+    private static volatile boolean recording;
+
+    private GcPauses() { }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        List<Integer> counts = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) counts.add(Integer.parseInt(args[i]));
+        if (counts.isEmpty()) counts = List.of(1_000_000, 10_000_000, 50_000_000);
+        listen();
+
+        System.out.printf("bank.offHeap=%s, %d s per count%n", System.getProperty("bank.offHeap", "false"), seconds);
+        System.out.printf("%12s %8s %10s %10s %10s %12s %12s%n", "accounts", "pauses", "p50 ms", "p99 ms", "max ms",
+                "retained MB", "index MB");
+        for (int n : counts) {
+            File dir = Core.call("createLargeBank", n);
+            Object service = Core.call("open", dir);
+            try {
+                run(service, n, seconds);
+            } finally {
+                Core.call("close", service);
+                Core.call("delete", dir);
+            }
+        }
+    }
+
+    private static void run(Object service, int n, int seconds) throws InterruptedException {
+        System.gc();
+        pauses.clear();
+        recording = true;
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Runnable touch = Core.call("touch", service, n, (long) t);
+            Thread thread = new Thread(() -> {
+                while (System.nanoTime() < end) touch.run();
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) thread.join();
+        recording = false;
+
+        List<Long> seen;
+        synchronized (pauses) {
+            seen = new ArrayList<>(pauses);
+        }
+        Collections.sort(seen);
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        long retained = (rt.totalMemory() - rt.freeMemory()) >> 20;
+        long index = Core.<Long>call("offHeapIndexBytes", service) >> 20;
+        System.out.printf("%,12d %8d %10d %10d %10d %,12d %,12d%n", n, seen.size(), percentile(seen, 50),
+                percentile(seen, 99), seen.isEmpty() ? 0 : seen.get(seen.size() - 1), retained, index);
+    }
+
+    private static long percentile(List<Long> sorted, int p) {
+        if (sorted.isEmpty()) return 0;
+        return sorted.get(Math.min(sorted.size() - 1, sorted.size() * p / 100));
+    }
+
+    // records the pauses of stop-the-world collections, leaving out the
+    // beans that time whole concurrent cycles and explicit collections
+    private static void listen() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc.getName().contains("Concurrent") || gc.getName().contains("Cycles")) continue;
+            ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                if (!recording
+                        || !notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                // the one asked for between counts may be reported late
+                if (!info.getGcCause().equals("System.gc()")) pauses.add(info.getGcInfo().getDuration());
+            }, null, null);
+        }
+    }
+}
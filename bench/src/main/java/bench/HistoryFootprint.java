@@ -0,0 +1,51 @@
+package bench;
+
+import java.lang.ref.Reference;
+
+/**
+ * Heap held by transaction histories, old object form against the packed one
+ *
+ *   java -cp bench/target/benchmarks.jar bench.HistoryFootprint [accounts] [entries]
+ *
+ * Defaults to 100000 accounts with 200 entries each; give the JVM a heap to
+ * match (about -Xmx4g for the defaults).
+ */
+public final class HistoryFootprint {
+    private HistoryFootprint() { }
+
+    public static void main(String[] args) {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int entries = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        long objects = measure(accounts, entries, false);
+        long packed = measure(accounts, entries, true);
+        long total = (long) accounts * entries;
+        System.out.printf("%d accounts x %d entries%n", accounts, entries);
+        System.out.printf("  Transaction objects: %,d bytes (%.1f per entry)%n", objects, (double) objects / total);
+        System.out.printf("  packed history:      %,d bytes (%.1f per entry)%n", packed, (double) packed / total);
+        System.out.printf("  saving: %.0f%%%n", 100.0 * (objects - packed) / objects);
+    }
+
+    private static long measure(int accounts, int entries, boolean packed) {
+        long before = usedAfterGc();
+        Object histories = Core.call("histories", accounts, entries, packed);
+        long after = usedAfterGc();
+        Reference.reachabilityFence(histories);
+        return after - before;
+    }
+
+    private static long usedAfterGc() {
+        Runtime rt = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // a few rounds until the figure settles
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+        }
+        return used;
+    }
+}
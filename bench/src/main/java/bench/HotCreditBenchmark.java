@@ -0,0 +1,54 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Many threads crediting one account: a hot account's striped lock against
+ * a ReentrantReadWriteLock's shared side, and an ordinary account under one
+ * lock. Set the thread count with -t to see how each scales.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class HotCreditBenchmark {
+    private Runnable hotCredit;
+    private Runnable hotCreditReadWriteLock;
+    private Runnable lockedCredit;
+
+    @Setup
+    public void setup() {
+        hotCredit = Core.call("hotCredit");
+        hotCreditReadWriteLock = Core.call("hotCreditReadWriteLock");
+        lockedCredit = Core.call("lockedCredit");
+    }
+
+    @Benchmark
+    public void hotCredit() {
+        hotCredit.run();
+    }
+
+    @Benchmark
+    public void hotCreditReadWriteLock() {
+        hotCreditReadWriteLock.run();
+    }
+
+    @Benchmark
+    public void lockedCredit() {
+        lockedCredit.run();
+    }
+}
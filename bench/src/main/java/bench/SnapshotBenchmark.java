@@ -0,0 +1,91 @@
+package bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Saves (checkpoints) and startup loads of accounts.db: a save after one in
+ * a hundred accounts changed, which writes a delta, and a full snapshot of
+ * every account.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SnapshotBenchmark {
+    @State(Scope.Benchmark)
+    public static class Bank {
+        @Param({ "1000", "100000", "1000000" })
+        public int accounts;
+
+        File dir;
+
+        @Setup
+        public void setup() {
+            dir = Core.call("createBank", accounts);
+        }
+
+        @TearDown
+        public void tearDown() {
+            Core.call("delete", dir);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Open {
+        Object service;
+        Runnable dirty;
+        Runnable saveAccounts;
+        Runnable saveFull;
+
+        @Setup
+        public void setup(Bank bank) {
+            service = Core.call("open", bank.dir);
+            dirty = Core.call("dirty", service, bank.accounts, Math.max(1, bank.accounts / 100));
+            saveAccounts = Core.call("saveAccounts", service);
+            saveFull = Core.call("saveFull", service);
+        }
+
+        // outside the timing, so saveChanged has something to write
+        @Setup(Level.Invocation)
+        public void change() {
+            dirty.run();
+        }
+
+        @TearDown
+        public void tearDown() {
+            Core.call("close", service);
+        }
+    }
+
+    @Benchmark
+    public void saveChanged(Open open) {
+        open.saveAccounts.run();
+    }
+
+    @Benchmark
+    public void saveFull(Open open) {
+        open.saveFull.run();
+    }
+
+    @Benchmark
+    public long loadAccounts(Bank bank) {
+        LongSupplier load = Core.call("loadAccounts", bank.dir);
+        return load.getAsLong();
+    }
+}
@@ -0,0 +1,84 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A text accounts.db as the first releases wrote it is taken over on first
+ * start, and a binary one in any other format is refused.
+ */
+class AccountFileTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void aTextStoreIsMigratedOnFirstStart() throws Exception {
+        File data = dir.toFile();
+        File store = new File(data, "accounts.db");
+        Files.write(store.toPath(), List.of(
+                "1001|Asha %PIPE% Rao|9876543210|1234|1500.5|SAVINGS|"
+                        + "2024-01-05 10:00:00 - Transfer to 1002 ₹499.50 (rent) - Bal: ₹1,500.50;;"
+                        + "2024-01-04 09:00:00 - Deposit ₹2,000.00 - Bal: ₹2,000.00;;"
+                        + "2024-01-03 08:00:00 - Account opened - Savings Account - Bal: ₹0.00",
+                "",
+                "1002|Ravi|9123456780|4321|499.5|CHECKING|"
+                        + "2024-01-05 10:00:00 - Transfer from 1001 ₹499.50 (rent) - Bal: ₹499.50"),
+                StandardCharsets.UTF_8);
+
+        BankingService service = new BankingService(data);
+        assertTrue(AccountFile.isBinary(store));
+        assertMigrated(service);
+        // numbering carries on above the migrated accounts
+        assertEquals("1003", service.createAccount("new", "1111").accountNumber);
+        service.close();
+
+        BankingService reopened = new BankingService(data);
+        assertMigrated(reopened);
+        reopened.close();
+    }
+
+    @Test
+    void aStoreInAnotherFormatIsRefused() throws Exception {
+        File store = new File(dir.toFile(), "accounts.db");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(store))) {
+            out.writeInt(AccountFile.MAGIC);
+            out.writeInt(AccountFile.VERSION + 1);
+            out.write(new byte[32]);
+        }
+        AccountFile file = AccountFile.open(store);
+        assertThrows(IOException.class, () -> file.readAccounts(new HashMap<>()));
+        file.close();
+    }
+
+    private static void assertMigrated(BankingService service) {
+        Account a = service.getAccount("1001");
+        assertEquals("Asha | Rao", a.name);
+        assertEquals("9876543210", a.phoneNumber);
+        assertEquals(150050, a.getBalance());
+        List<Transaction> history = a.getTransactions();
+        assertEquals(3, history.size());
+        assertEquals(Transaction.Type.TRANSFER_OUT, history.get(0).type);
+        assertEquals(49950, history.get(0).amount);
+        assertEquals("1002", history.get(0).counterparty);
+        assertEquals("rent", history.get(0).reason);
+        assertEquals(Transaction.Type.DEPOSIT, history.get(1).type);
+        assertEquals(Transaction.Type.OPENED, history.get(2).type);
+
+        Account b = service.getAccount("1002");
+        assertEquals(Account.AccountType.CHECKING, b.accountType);
+        assertEquals(49950, b.getBalance());
+        assertEquals(Transaction.Type.TRANSFER_IN, b.getTransactions().get(0).type);
+    }
+}
@@ -0,0 +1,98 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Phone and name lookups find the same accounts for accounts opened in
+ * this run and ones loaded from disk. Also run with bank.offHeap, where the
+ * indexes live in OffHeapIndex and most accounts are parked.
+ */
+class AccountLookupTest {
+    private static final int FILLER = 300;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void findsAccountsByPhone() {
+        File data = dir.toFile();
+        BankingService service = new BankingService(data);
+        fill(service);
+        String a = open(service, "Asha", "9876543210");
+        String b = open(service, "Ravi", "9876543210");
+        String c = open(service, "Meena", "+91 98765 43211");
+        String d = open(service, "Long", "1234567890123456789012");
+        assertPhones(service, a, b, c, d);
+        service.close();
+
+        service = new BankingService(data);
+        assertPhones(service, a, b, c, d);
+        // one opened after the load shares a number with loaded ones
+        String e = open(service, "Asha again", "9876543210");
+        assertEquals(List.of(a, b, e), numbers(service.findByPhone("9876543210")));
+        service.close();
+    }
+
+    @Test
+    void findsAccountsByNamePrefix() {
+        File data = dir.toFile();
+        BankingService service = new BankingService(data);
+        fill(service);
+        String smith = open(service, "Alexander Smith", "");
+        String smyth = open(service, "alexander smyth", "");
+        String smith2 = open(service, "ALEXANDER SMITH", "");
+        String alex = open(service, "Alex", "");
+        String erik = open(service, "Érik Ødegård", "");
+        assertNames(service, smith, smyth, smith2, alex, erik);
+        service.close();
+
+        service = new BankingService(data);
+        assertNames(service, smith, smyth, smith2, alex, erik);
+        String later = open(service, "Alexander Smart", "");
+        assertEquals(List.of(later, smith, smith2), numbers(service.findByNamePrefix("Alexander Sm", 3)));
+        service.close();
+    }
+
+    private static void assertPhones(BankingService service, String a, String b, String c, String d) {
+        assertEquals(List.of(a, b), numbers(service.findByPhone("9876543210")));
+        assertEquals(List.of(a, b), numbers(service.findByPhone(" 9876543210 ")));
+        assertEquals(List.of(c), numbers(service.findByPhone("+91 98765 43211")));
+        assertEquals(List.of(d), numbers(service.findByPhone("1234567890123456789012")));
+        assertEquals(List.of(), numbers(service.findByPhone("9876543")));
+        assertEquals(List.of(), numbers(service.findByPhone("")));
+    }
+
+    private static void assertNames(BankingService service, String smith, String smyth, String smith2,
+                                    String alex, String erik) {
+        // case is ignored, and names that tie are in account number order
+        assertEquals(List.of(alex, smith, smith2, smyth), numbers(service.findByNamePrefix("alex", 10)));
+        assertEquals(List.of(smith, smith2, smyth), numbers(service.findByNamePrefix("ALEXANDER S", 10)));
+        // past the first eight bytes of the name
+        assertEquals(List.of(smith, smith2), numbers(service.findByNamePrefix("alexander smi", 10)));
+        assertEquals(List.of(smyth), numbers(service.findByNamePrefix("Alexander Smy", 10)));
+        assertEquals(List.of(alex, smith), numbers(service.findByNamePrefix("Alex", 2)));
+        assertEquals(List.of(erik), numbers(service.findByNamePrefix("érik ø", 10)));
+        assertEquals(List.of(), numbers(service.findByNamePrefix("Alexandra", 10)));
+    }
+
+    // accounts enough that, with a small account cache, most are parked
+    private static void fill(BankingService service) {
+        for (int i = 0; i < FILLER; i++) open(service, "Filler " + i, "70000" + (10000 + i));
+    }
+
+    private static String open(BankingService service, String name, String phone) {
+        return service.createAccount(name, phone, "1234", Account.AccountType.SAVINGS).accountNumber;
+    }
+
+    private static List<String> numbers(List<Account> accounts) {
+        List<String> numbers = new ArrayList<>();
+        for (Account a : accounts) numbers.add(a.accountNumber);
+        return numbers;
+    }
+}
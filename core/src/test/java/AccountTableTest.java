@@ -0,0 +1,113 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Which keys get a slot, and that accounts spread over many pages, or
+ * kept in the side map, are found and iterated in number order.
+ */
+class AccountTableTest {
+    private static final int PAGE_SIZE = 1 << 12;
+    private static final int MAX_INDEX = 1 << 28;
+
+    @Test
+    void slotsStartAtTheFirstAccountNumber() {
+        assertEquals(-1, AccountTable.index(String.valueOf(AccountTable.FIRST_NUMBER - 1)));
+        assertEquals(0, AccountTable.index(String.valueOf(AccountTable.FIRST_NUMBER)));
+        assertEquals(MAX_INDEX - 1, AccountTable.index((long) AccountTable.FIRST_NUMBER + MAX_INDEX - 1));
+        assertEquals(-1, AccountTable.index((long) AccountTable.FIRST_NUMBER + MAX_INDEX));
+        for (String key : new String[] { "", "0", "01001", "-1001", "+1001", "10a1", "99999999999", "1001 " }) {
+            assertEquals(-1, AccountTable.index(key), key);
+        }
+    }
+
+    @Test
+    void accountsAcrossPagesAndTheSideMapAreFoundInOrder() {
+        AccountTable table = new AccountTable();
+        long first = AccountTable.FIRST_NUMBER;
+        // page edges, past the pages the table starts with, the last slot, and keys without one
+        long[] numbers = { first, first + 1, first + PAGE_SIZE - 1, first + PAGE_SIZE, first + 16L * PAGE_SIZE + 5,
+                first + MAX_INDEX - 1 };
+        List<String> expected = new ArrayList<>();
+        for (int i = numbers.length - 1; i >= 0; i--) put(table, Long.toString(numbers[i]));
+        for (long n : numbers) expected.add(Long.toString(n));
+        for (String key : new String[] { "1000", "01001", "ACC-7" }) {
+            put(table, key);
+            expected.add(key);
+        }
+
+        assertEquals(expected.size(), table.size());
+        for (String key : expected) {
+            assertTrue(table.containsKey(key), key);
+            assertEquals(key, table.get(key).accountNumber);
+        }
+        for (long n : numbers) assertSame(table.get(Long.toString(n)), table.get(n));
+        assertEquals("1000", table.get(1000L).accountNumber);
+        assertNull(table.get(Long.toString(first + 2)));
+        assertFalse(table.containsKey(Long.toString(first + PAGE_SIZE + 1)));
+        assertNull(table.get(first + MAX_INDEX));
+
+        // slots in number order, then the side map in no particular order
+        List<String> keys = new ArrayList<>(table.keySet());
+        assertEquals(expected.subList(0, numbers.length), keys.subList(0, numbers.length));
+        assertEquals(new HashSet<>(expected), new HashSet<>(keys));
+        List<String> values = new ArrayList<>();
+        for (Account a : table.values()) values.add(a.accountNumber);
+        assertEquals(keys, values);
+    }
+
+    @Test
+    void replacingAnAccountKeepsTheCount() {
+        AccountTable table = new AccountTable();
+        Account old = put(table, "1001");
+        Account replacement = account("1001");
+        assertSame(old, table.put("1001", replacement));
+        assertSame(replacement, table.get("1001"));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    void concurrentPutsGrowThePagesSafely() throws Exception {
+        AccountTable table = new AccountTable();
+        int threads = 8, each = 3 * PAGE_SIZE;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int offset = t;
+                // interleaved, so threads keep adding pages next to each other
+                done.add(pool.submit(() -> {
+                    for (int i = 0; i < each; i++) put(table, Long.toString(AccountTable.FIRST_NUMBER + (long) i * threads + offset));
+                }));
+            }
+            for (Future<?> f : done) f.get();
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(threads * each, table.size());
+        long expected = AccountTable.FIRST_NUMBER;
+        for (String key : table.keySet()) assertEquals(Long.toString(expected++), key);
+        assertEquals(AccountTable.FIRST_NUMBER + threads * each, expected);
+    }
+
+    private static Account put(AccountTable table, String number) {
+        Account a = account(number);
+        assertNull(table.put(number, a));
+        return a;
+    }
+
+    private static Account account(String number) {
+        return Account.restore(number, "holder " + number, "", "1234", 0, Account.AccountType.SAVINGS);
+    }
+}
@@ -0,0 +1,113 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Many clients posting to a handful of accounts over the HTTP API at once:
+ * every request is answered, and the balances come out exact.
+ */
+class BankServerLoadTest {
+    private static final int ACCOUNTS = 10;
+    private static final int CLIENTS = 32;
+    private static final int REQUESTS = 60; // per client
+    private static final long OPENING = 10_000_00;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void concurrentPostingsAreAllAnsweredAndAddUp() throws Exception {
+        BankingService service = new BankingService(dir.toFile());
+        String[] numbers = new String[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            Account a = service.createAccount("holder " + i, "1234");
+            service.deposit(a, OPENING, "opening");
+            numbers[i] = a.accountNumber;
+        }
+        BankServer server = new BankServer(service, "127.0.0.1", 0, 1024);
+        server.start();
+        String base = "http://127.0.0.1:" + server.getPort() + "/api/accounts/";
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+        // what each account should have moved by, one rupee per posting
+        AtomicLongArray change = new AtomicLongArray(ACCOUNTS);
+        ExecutorService pool = Executors.newFixedThreadPool(CLIENTS);
+        List<Future<?>> done = new ArrayList<>();
+        try {
+            for (int c = 0; c < CLIENTS; c++) {
+                int seed = c;
+                done.add(pool.submit(() -> {
+                    Random random = new Random(seed);
+                    for (int n = 0; n < REQUESTS; n++) {
+                        int i = random.nextInt(ACCOUNTS);
+                        String account = base + numbers[i];
+                        switch (random.nextInt(5)) {
+                            case 0:
+                                assertOk(client, post(account + "/deposit", "{\"amount\":\"1.00\",\"reason\":\"load\"}"));
+                                change.addAndGet(i, 100);
+                                break;
+                            case 1:
+                                assertOk(client, post(account + "/withdraw", "{\"amount\":\"1.00\",\"reason\":\"load\"}"));
+                                change.addAndGet(i, -100);
+                                break;
+                            case 2: {
+                                int j = (i + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+                                assertOk(client, post(account + "/transfer",
+                                        "{\"to\":\"" + numbers[j] + "\",\"amount\":\"1.00\",\"reason\":\"load\"}"));
+                                change.addAndGet(i, -100);
+                                change.addAndGet(j, 100);
+                                break;
+                            }
+                            case 3:
+                                assertOk(client, get(account + "/history?limit=20"));
+                                break;
+                            default:
+                                assertOk(client, get(account));
+                                break;
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : done) f.get();
+        } finally {
+            pool.shutdown();
+            server.stop();
+        }
+
+        for (int i = 0; i < ACCOUNTS; i++) {
+            assertEquals(OPENING + change.get(i), service.getAccount(numbers[i]).getBalance(), numbers[i]);
+        }
+        service.close();
+    }
+
+    private static HttpRequest post(String uri, String json) {
+        return HttpRequest.newBuilder(URI.create(uri)).header("X-Pin", "1234")
+                .POST(HttpRequest.BodyPublishers.ofString(json)).build();
+    }
+
+    private static HttpRequest get(String uri) {
+        return HttpRequest.newBuilder(URI.create(uri)).header("X-Pin", "1234").GET().build();
+    }
+
+    private static void assertOk(HttpClient client, HttpRequest request) throws Exception {
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode(), response.body());
+        assertTrue(response.body().startsWith("{\"account\":"), response.body());
+    }
+}
@@ -0,0 +1,85 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The off-heap account cache under a book many times its size: changed
+ * accounts are parked by writing them back rather than by saving everything,
+ * saves leave parked accounts parked, and nothing is lost across a crash.
+ */
+class BankingServiceCacheTest {
+    private static final int ACCOUNTS = 100;
+    private static final int ROUNDS = 6;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void changedAccountsAreWrittenBackAndSavedLater() throws Exception {
+        File data = dir.toFile();
+        ChildJvm.run(Workload.class, List.of("bank.offHeap=true", "bank.accountCache=16",
+                "bank.maxDeltas=2", "bank.checkpointSeconds=0"), data.getPath());
+
+        Properties seen = new Properties();
+        try (Reader in = new FileReader(new File(data, "seen.properties"))) {
+            seen.load(in);
+        }
+        assertTrue(Long.parseLong(seen.getProperty("writeBacks")) > 0);
+        assertEquals("0", seen.getProperty("installedBySaves"));
+
+        BankingService recovered = new BankingService(data);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            String acc = String.valueOf(AccountTable.FIRST_NUMBER + i);
+            assertEquals(expected(i), recovered.getAccount(acc).getBalance(), acc);
+        }
+        recovered.close();
+    }
+
+    // opening deposit, then one more per round for every third account
+    private static long expected(int i) {
+        return 1000 + i + (i % 3 == 0 ? ROUNDS * 10 : 0);
+    }
+
+    /**
+     * The child side: deposits across the book with saves in between, notes
+     * what the cache did and halts without closing.
+     */
+    static class Workload {
+        public static void main(String[] args) throws Exception {
+            File data = new File(args[0]);
+            BankingService service = new BankingService(data);
+            for (int i = 0; i < ACCOUNTS; i++) {
+                Account a = service.createAccount("holder " + i, "1234");
+                service.deposit(a, 1000 + i, "opening");
+            }
+            long installedBySaves = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                long misses = service.getCacheMisses();
+                service.saveAccounts(); // deltas, merged every few rounds
+                installedBySaves += service.getCacheMisses() - misses;
+                for (int i = 0; i < ACCOUNTS; i += 3) {
+                    service.deposit(service.getAccount(String.valueOf(AccountTable.FIRST_NUMBER + i)), 10, "");
+                }
+            }
+
+            Properties seen = new Properties();
+            seen.setProperty("writeBacks", Long.toString(service.getCacheWriteBacks()));
+            seen.setProperty("installedBySaves", Long.toString(installedBySaves));
+            try (Writer out = new FileWriter(new File(data, "seen.properties"))) {
+                seen.store(out, null);
+            }
+            Runtime.getRuntime().halt(0);
+        }
+    }
+}
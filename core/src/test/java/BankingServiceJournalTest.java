@@ -0,0 +1,118 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The journal across runs with and without it, a journal that cannot be
+ * read, and one that cannot be written.
+ */
+class BankingServiceJournalTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void runsWithoutTheJournalKeepWhatItHeld() throws Exception {
+        File data = dir.toFile();
+        assertEquals(100, deposit(data, 100, List.of()));
+        // the journal of the first run is replayed and folded in, not ignored
+        assertEquals(1100, deposit(data, 1000, List.of("bank.journal=false")));
+        assertFalse(new File(data, "accounts.journal").exists());
+        // and is not replayed over the newer snapshot
+        assertEquals(1100, deposit(data, 0, List.of()));
+        assertEquals(1107, deposit(data, 7, List.of("bank.journal=false")));
+        assertEquals(1107, deposit(data, 0, List.of()));
+    }
+
+    @Test
+    void anUnreadableJournalStopsTheService() throws Exception {
+        File data = dir.toFile();
+        File file = new File(data, "accounts.journal");
+        Journal journal = new Journal(file);
+        journal.open(0, 0, new HashMap<>());
+        journal.close();
+        // a record that passes its checksum but holds an unknown entry
+        byte[] number = "1001".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(8 + 1 + 2 + number.length)
+                .putLong(1).put((byte) 99).putShort((short) number.length).put(number);
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(out.length());
+            out.writeInt(payload.capacity());
+            out.writeInt((int) crc.getValue());
+            out.write(payload.array());
+        }
+
+        assertThrows(UncheckedIOException.class, () -> new BankingService(data));
+    }
+
+    @Test
+    void postingsTheJournalCannotTakeAreNotAcknowledged() throws Exception {
+        File data = dir.toFile();
+        BankingService service = new BankingService(data);
+        Account a = service.createAccount("holder", "1234");
+        service.deposit(a, 100, "");
+
+        // the writer's next write fails, as on a failed disk
+        channel(journal(service)).close();
+        assertThrows(UncheckedIOException.class, () -> service.deposit(a, 50, ""));
+        // refused before anything is applied, though the balance would cover it
+        assertThrows(UncheckedIOException.class, () -> service.withdraw(a, 10, ""));
+        assertThrows(UncheckedIOException.class, () -> service.createAccount("other", "1234"));
+        service.close();
+
+        BankingService reopened = new BankingService(data);
+        assertEquals(100, reopened.getAccount(a.accountNumber).getBalance());
+        assertEquals(1, reopened.getAccountCount());
+        reopened.close();
+    }
+
+    private static Journal journal(BankingService service) throws ReflectiveOperationException {
+        Field f = BankingService.class.getDeclaredField("journal");
+        f.setAccessible(true);
+        return (Journal) f.get(service);
+    }
+
+    private static FileChannel channel(Journal journal) throws ReflectiveOperationException {
+        Field f = Journal.class.getDeclaredField("channel");
+        f.setAccessible(true);
+        return (FileChannel) f.get(journal);
+    }
+
+    // deposits into account 1001 (opened on the first run) in a child JVM
+    // that halts without closing, and returns the balance it saw
+    private static long deposit(File data, long amount, List<String> settings) throws Exception {
+        ChildJvm.run(Deposit.class, settings, data.getPath(), Long.toString(amount));
+        return Long.parseLong(Files.readString(new File(data, "balance.txt").toPath()));
+    }
+
+    static class Deposit {
+        public static void main(String[] args) throws Exception {
+            File data = new File(args[0]);
+            BankingService service = new BankingService(data);
+            Account account = service.getAccount("1001");
+            if (account == null) account = service.createAccount("holder", "1234");
+            long amount = Long.parseLong(args[1]);
+            if (amount > 0) service.deposit(account, amount, "");
+            Files.writeString(new File(data, "balance.txt").toPath(),
+                    Long.toString(service.getAccount("1001").getBalance()));
+            Runtime.getRuntime().halt(0);
+        }
+    }
+}
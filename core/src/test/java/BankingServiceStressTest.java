@@ -0,0 +1,129 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Many threads transferring between random accounts while checkpoints run:
+ * no money is made or lost, and the books read back the same after a crash
+ * and after a clean close.
+ *
+ * The transfers run in a child JVM that halts without closing the service,
+ * like a crash, once it has written down the balances it ended with. The
+ * core build runs this once as configured and once with bank.offHeap, where
+ * a small account cache keeps accounts being parked and reloaded.
+ */
+class BankingServiceStressTest {
+    private static final int ACCOUNTS = 200;
+    private static final int THREADS = 8;
+    private static final int TRANSFERS = 1500; // per thread
+    private static final long OPENING = 100_000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void transfersConserveTheTotal() throws Exception {
+        File data = dir.toFile();
+        ChildJvm.run(Workload.class, List.of(), data.getPath());
+
+        Map<String, Long> expected = new HashMap<>();
+        Properties written = new Properties();
+        try (Reader in = new FileReader(new File(data, "expected.properties"))) {
+            written.load(in);
+        }
+        for (String acc : written.stringPropertyNames()) expected.put(acc, Long.parseLong(written.getProperty(acc)));
+        assertEquals(ACCOUNTS * OPENING, total(expected));
+
+        BankingService recovered = new BankingService(data);
+        assertEquals(expected, balances(recovered));
+        recovered.close();
+
+        BankingService reopened = new BankingService(data);
+        assertEquals(expected, balances(reopened));
+        reopened.close();
+    }
+
+    private static Map<String, Long> balances(BankingService service) {
+        Map<String, Long> balances = new HashMap<>();
+        for (Account a : service.getAllAccounts().values()) {
+            Account current = service.getAccount(a.accountNumber);
+            assertNotNull(current);
+            balances.put(a.accountNumber, current.getBalance());
+        }
+        return balances;
+    }
+
+    private static long total(Map<String, Long> balances) {
+        long total = 0;
+        for (long balance : balances.values()) total += balance;
+        return total;
+    }
+
+    /**
+     * The child side: opens accounts, transfers between them from many
+     * threads, writes the balances down and halts.
+     */
+    static class Workload {
+        public static void main(String[] args) throws Exception {
+            File data = new File(args[0]);
+            BankingService service = new BankingService(data);
+            List<Account> kept = new ArrayList<>();
+            for (int i = 0; i < ACCOUNTS; i++) {
+                Account a = service.createAccount("holder " + i, "98765" + (10000 + i), "1234", Account.AccountType.SAVINGS);
+                service.deposit(a, OPENING, "opening");
+                kept.add(a);
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int worker = t;
+                done.add(pool.submit(() -> {
+                    Random random = new Random(worker);
+                    for (int n = 0; n < TRANSFERS; n++) {
+                        int i = random.nextInt(ACCOUNTS), j = random.nextInt(ACCOUNTS);
+                        if (i == j) continue;
+                        // objects kept since creation may be stale by now; the service redirects them
+                        Account from = random.nextBoolean() ? kept.get(i) : service.getAccount(kept.get(i).accountNumber);
+                        Account to = random.nextBoolean() ? kept.get(j) : service.getAccount(kept.get(j).accountNumber);
+                        service.transfer(from, to, 1 + random.nextInt(300), "stress");
+                        if (worker == 0 && n % 250 == 0) service.saveAccounts();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : done) f.get();
+
+            Properties balances = new Properties();
+            for (Map.Entry<String, Long> e : balances(service).entrySet()) {
+                balances.setProperty(e.getKey(), Long.toString(e.getValue()));
+            }
+            try (Writer out = new FileWriter(new File(data, "expected.properties"))) {
+                balances.store(out, null);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                Runtime.getRuntime().halt(1);
+            }
+            Runtime.getRuntime().halt(0);
+        }
+    }
+}
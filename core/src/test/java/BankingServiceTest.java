@@ -0,0 +1,123 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Postings the service turns away, opening a bank in a new directory or
+ * one already open, and using accounts before the bank has finished opening.
+ */
+class BankingServiceTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void overLongReasonsAreRejectedBeforeAnythingIsApplied() {
+        File data = dir.toFile();
+        BankingService service = new BankingService(data);
+        Account a = service.createAccount("holder", "1234");
+        Account b = service.createAccount("other", "1234");
+        service.deposit(a, 500, "");
+        String reason = "r".repeat(70000);
+
+        assertThrows(IllegalArgumentException.class, () -> service.deposit(a, 100, reason));
+        assertThrows(IllegalArgumentException.class, () -> service.withdraw(a, 100, reason));
+        assertThrows(IllegalArgumentException.class, () -> service.transfer(a, b, 100, reason));
+        service.deposit(a, 1, "r".repeat(BankingService.MAX_REASON));
+        assertEquals(501, service.getAccount(a.accountNumber).getBalance());
+        assertEquals(0, service.getAccount(b.accountNumber).getBalance());
+        service.close();
+
+        BankingService reopened = new BankingService(data);
+        assertEquals(501, reopened.getAccount(a.accountNumber).getBalance());
+        assertEquals(3, reopened.getAccount(a.accountNumber).getTransactionCount());
+        reopened.close();
+    }
+
+    @Test
+    void aMissingDataDirectoryIsCreated() {
+        File data = new File(dir.toFile(), "new/bank");
+        BankingService service = new BankingService(data);
+        Account a = service.createAccount("holder", "1234");
+        service.deposit(a, 500, "");
+        service.close();
+
+        BankingService reopened = new BankingService(data);
+        assertEquals(500, reopened.getAccount(a.accountNumber).getBalance());
+        reopened.close();
+    }
+
+    @Test
+    void aDirectoryOpenElsewhereIsNotOpenedAgain() throws Exception {
+        File data = dir.toFile();
+        BankingService service = new BankingService(data);
+        service.createAccount("holder", "1234");
+        assertThrows(IllegalStateException.class, () -> new BankingService(data));
+        ChildJvm.run(OpenElsewhere.class, List.of(), data.getPath());
+        assertEquals("refused", Files.readString(new File(data, "open.txt").toPath()));
+        service.close();
+
+        BankingService reopened = new BankingService(data);
+        assertEquals(1, reopened.getAccountCount());
+        reopened.close();
+    }
+
+    /**
+     * The child side: tries to open a directory the test holds open.
+     */
+    static class OpenElsewhere {
+        public static void main(String[] args) throws Exception {
+            File data = new File(args[0]);
+            String result;
+            try {
+                new BankingService(data);
+                result = "opened";
+            } catch (IllegalStateException ex) {
+                result = "refused";
+            }
+            Files.writeString(new File(data, "open.txt").toPath(), result);
+            Runtime.getRuntime().halt(0);
+        }
+    }
+
+    @Test
+    void accountsCanBeUsedOnceLoadedBeforeTheIndexesAreBuilt() {
+        File data = dir.toFile();
+        BankingService service = new BankingService(data);
+        Account a = service.createAccount("holder", "9876543210", "1234", Account.AccountType.SAVINGS);
+        service.changePin(a, "4321");
+        service.close();
+
+        List<String> stages = new ArrayList<>();
+        BankingService reopened = new BankingService(data, stages::add, loaded -> {
+            assertFalse(stages.get(stages.size() - 1).startsWith("Indexing"));
+            assertNull(loaded.authenticate(a.accountNumber, "1234"));
+            Account account = loaded.authenticate(a.accountNumber, "4321");
+            loaded.deposit(account, 700, "while indexing");
+            stages.add("loaded");
+        });
+        assertEquals("loaded", stages.get(stages.size() - 2));
+        assertTrue(stages.get(stages.size() - 1).startsWith("Indexing"));
+        List<Account> found = reopened.findByPhone("9876543210");
+        assertEquals(1, found.size());
+        assertEquals(a.accountNumber, found.get(0).accountNumber);
+        assertEquals(700, reopened.getAccount(a.accountNumber).getBalance());
+        reopened.close();
+    }
+
+    @Test
+    void encodeRefusesTextItCannotStore() {
+        Transaction t = new Transaction(0, Transaction.Type.DEPOSIT, 100, "", "r".repeat(70000), 100);
+        assertThrows(IllegalArgumentException.class, t::encode);
+    }
+}
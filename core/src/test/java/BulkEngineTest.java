@@ -0,0 +1,107 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * What a bulk run applies, rejects and turns away, and that a credit from
+ * another worker's account is in place before the posting after it.
+ */
+class BulkEngineTest {
+    private static final int PAIRS = 500;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void aTransferInIsAppliedBeforeTheWithdrawalAfterIt() throws Exception {
+        BankingService service = new BankingService(dir.toFile());
+        List<String> lines = new ArrayList<>();
+        String[] payers = new String[PAIRS], payees = new String[PAIRS];
+        for (int i = 0; i < PAIRS; i++) {
+            Account payer = service.createAccount("payer " + i, "1234");
+            service.deposit(payer, 100, "");
+            payers[i] = payer.accountNumber;
+            payees[i] = service.createAccount("payee " + i, "1234").accountNumber;
+        }
+        // each payee only has the money once the transfer before it is in
+        for (int i = 0; i < PAIRS; i++) {
+            lines.add("transfer," + payers[i] + ",1.00," + payees[i] + ",in");
+            lines.add("withdraw," + payees[i] + ",1.00,,out");
+        }
+
+        List<String> results = run(service, lines);
+        for (int i = 0; i < lines.size(); i++) assertEquals((i + 1) + ",OK,", results.get(i), lines.get(i));
+        for (int i = 0; i < PAIRS; i++) {
+            assertEquals(0, service.getAccount(payers[i]).getBalance());
+            assertEquals(0, service.getAccount(payees[i]).getBalance());
+        }
+        service.close();
+    }
+
+    @Test
+    void postingsTheBankWouldRefuseAreReported() throws Exception {
+        BankingService service = new BankingService(dir.toFile());
+        String a = service.createAccount("holder", "1234").accountNumber;
+        String b = service.createAccount("other", "1234").accountNumber;
+
+        List<String> results = run(service, List.of(
+                "op,account,amount,target,reason",
+                "deposit," + a + ",5.00,,",
+                "withdraw," + a + ",6.00,,",
+                "transfer," + a + ",1.00," + a + ",",
+                "transfer," + a + ",1.00,9999,",
+                "deposit,9999,1.00,,",
+                "deposit," + a + ",-1.00,,",
+                "transfer," + a + ",2.50," + b + ",\"rent, March\""));
+        assertEquals(List.of(
+                "2,OK,",
+                "3,REJECTED,Insufficient balance",
+                "4,ERROR,Cannot transfer to the same account",
+                "5,ERROR,Recipient account not found: 9999",
+                "6,ERROR,Account not found: 9999",
+                "7,ERROR,Amount must be positive: -1.00",
+                "8,OK,"), results);
+        assertEquals(250, service.getAccount(a).getBalance());
+        assertEquals(250, service.getAccount(b).getBalance());
+        assertEquals("rent, March", service.getAccount(b).getTransactions().get(0).reason);
+        service.close();
+    }
+
+    @Test
+    void jsonLinesAreReadToo() throws Exception {
+        BankingService service = new BankingService(dir.toFile());
+        String a = service.createAccount("holder", "1234").accountNumber;
+        String b = service.createAccount("other", "1234").accountNumber;
+
+        List<String> results = run(service, "postings.jsonl", List.of(
+                "{\"op\":\"deposit\",\"account\":\"" + a + "\",\"amount\":\"3.00\"}",
+                "{\"op\":\"transfer\",\"from\":\"" + a + "\",\"to\":\"" + b + "\",\"amount\":1,\"reason\":\"a \\\"gift\\\"\"}"));
+        assertEquals(List.of("1,OK,", "2,OK,"), results);
+        assertEquals(200, service.getAccount(a).getBalance());
+        assertEquals("a \"gift\"", service.getAccount(b).getTransactions().get(0).reason);
+        service.close();
+    }
+
+    private List<String> run(BankingService service, List<String> lines) throws Exception {
+        return run(service, "postings.csv", lines);
+    }
+
+    // the result lines, header left out
+    private List<String> run(BankingService service, String name, List<String> lines) throws Exception {
+        File input = new File(dir.toFile(), name);
+        File output = new File(dir.toFile(), name + ".results.csv");
+        Files.write(input.toPath(), lines, StandardCharsets.UTF_8);
+        new BulkEngine(service).run(input, output);
+        List<String> results = Files.readAllLines(output.toPath(), StandardCharsets.UTF_8);
+        assertEquals("line,status,detail", results.get(0));
+        return results.subList(1, results.size());
+    }
+}
@@ -0,0 +1,36 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a main class in a fresh JVM on the test class path, for tests that
+ * need the service to crash (Runtime.halt) or to read different bank.*
+ * settings, which it takes once per JVM. The test's own bank.* properties
+ * are passed on, then the given ones, e.g. "bank.journal=false".
+ */
+final class ChildJvm {
+    private ChildJvm() { }
+
+    static void run(Class<?> main, List<String> settings, String... args) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith("bank.")) command.add("-D" + key + "=" + System.getProperty(key));
+        }
+        for (String setting : settings) command.add("-D" + setting);
+        command.add(main.getName());
+        command.addAll(Arrays.asList(args));
+        Process child = new ProcessBuilder(command).inheritIO().start();
+        if (!child.waitFor(5, TimeUnit.MINUTES)) {
+            child.destroyForcibly();
+            throw new AssertionError(main.getSimpleName() + " did not finish");
+        }
+        assertEquals(0, child.exitValue(), main.getSimpleName() + " failed");
+    }
+}
@@ -0,0 +1,91 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Credits to a hot account from many threads while folds and lock-free
+ * balance reads go on.
+ */
+class HotBalanceTest {
+    private static final int THREADS = 4;
+    private static final int CREDITS = 20_000; // per thread
+
+    @Test
+    void foldsSeeNoCreditInFlightAndStampRunningBalances() throws Exception {
+        Account a = new Account("1001", "holder", "", "1234", 0, Account.AccountType.SAVINGS);
+        a.setHot(true);
+        Lock shared = a.hotLock().readLock();
+        Lock exclusive = a.hotLock().writeLock();
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS + 2);
+
+        List<Future<?>> credits = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            credits.add(pool.submit(() -> {
+                for (int i = 0; i < CREDITS; i++) {
+                    shared.lock();
+                    try {
+                        a.credit(Transaction.Type.DEPOSIT, 1, "", "");
+                    } finally {
+                        shared.unlock();
+                    }
+                }
+            }));
+        }
+        Future<?> folds = pool.submit(() -> {
+            while (!done.get()) {
+                exclusive.lock();
+                try {
+                    a.fold();
+                    for (int i = 0; i < 100; i++) Thread.onSpinWait();
+                    // nothing was credited while the lock was held
+                    assertEquals(a.balance, a.getBalance());
+                    assertRunningBalances(a);
+                } finally {
+                    exclusive.unlock();
+                }
+            }
+        });
+        Future<?> reads = pool.submit(() -> {
+            long last = 0;
+            while (!done.get()) {
+                long now = a.getBalance();
+                assertTrue(now >= last, now + " after " + last);
+                last = now;
+            }
+        });
+
+        for (Future<?> f : credits) f.get();
+        done.set(true);
+        folds.get();
+        reads.get();
+        pool.shutdown();
+
+        exclusive.lock();
+        try {
+            a.fold();
+        } finally {
+            exclusive.unlock();
+        }
+        assertEquals((long) THREADS * CREDITS, a.getBalance());
+        assertEquals((long) THREADS * CREDITS, a.getTransactions().get(0).balance);
+        assertRunningBalances(a);
+    }
+
+    // newest first, each entry's balance one amount above the entry before it
+    private static void assertRunningBalances(Account a) {
+        List<Transaction> history = a.getTransactions();
+        for (int i = 0; i + 1 < history.size(); i++) {
+            assertEquals(history.get(i + 1).balance + history.get(i).amount, history.get(i).balance);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Which journal records are replayed over a snapshot.
+ */
+class JournalTest {
+    @TempDir
+    Path dir;
+
+    private File journalFile() {
+        return new File(dir.toFile(), "accounts.journal");
+    }
+
+    @Test
+    void replaysRecordsOfTheSnapshotGeneration() throws Exception {
+        writeOpen(journalFile(), 0, "1001", 100);
+
+        Map<String, Account> accounts = new HashMap<>();
+        Journal journal = new Journal(journalFile());
+        assertEquals(1, journal.open(0, 0, accounts));
+        journal.close();
+        assertEquals(100, accounts.get("1001").getBalance());
+    }
+
+    @Test
+    void skipsAJournalOlderThanTheSnapshot() throws Exception {
+        // e.g. left behind by a run with bank.journal=false, whose snapshot is newer
+        writeOpen(journalFile(), 0, "1001", 100);
+
+        Map<String, Account> accounts = new HashMap<>();
+        Journal journal = new Journal(journalFile());
+        assertEquals(0, journal.open(1, 0, accounts));
+        journal.close();
+        assertTrue(accounts.isEmpty());
+
+        // and it was emptied, so it stays skipped
+        journal = new Journal(journalFile());
+        assertEquals(0, journal.open(0, 0, accounts));
+        journal.close();
+        assertTrue(accounts.isEmpty());
+    }
+
+    @Test
+    void skipsAndDeletesSealedSegmentsOlderThanTheSnapshot() throws Exception {
+        Journal journal = new Journal(journalFile());
+        journal.open(0, 0, new HashMap<>());
+        journal.append(new Journal.Record().open(account("1001", 100)));
+        long sealed = journal.rotate(1);
+        journal.append(new Journal.Record().open(account("1002", 200)));
+        journal.close();
+        File segment = new File(journalFile().getPath() + "." + sealed);
+        assertTrue(segment.exists());
+
+        Map<String, Account> accounts = new HashMap<>();
+        journal = new Journal(journalFile());
+        assertEquals(1, journal.open(1, 0, accounts));
+        journal.close();
+        assertFalse(accounts.containsKey("1001"));
+        assertEquals(200, accounts.get("1002").getBalance());
+        assertFalse(segment.exists());
+    }
+
+    @Test
+    void rotationWithNothingNewStampsTheActiveFile() throws Exception {
+        Journal journal = new Journal(journalFile());
+        journal.open(0, 0, new HashMap<>());
+        journal.append(new Journal.Record().open(account("1001", 100)));
+        journal.rotate(1);
+        journal.close();
+
+        // replayed at startup, then a checkpoint begins before anything new is logged
+        Map<String, Account> accounts = new HashMap<>();
+        journal = new Journal(journalFile());
+        journal.open(0, 0, accounts);
+        journal.rotate(2);
+        journal.append(new Journal.Record().open(account("1002", 200)));
+        journal.close();
+        assertEquals(2, journal.getGeneration());
+
+        // the record appended after the generation 2 snapshot began must survive it
+        accounts = new HashMap<>();
+        journal = new Journal(journalFile());
+        journal.open(2, 0, accounts);
+        journal.close();
+        assertEquals(200, accounts.get("1002").getBalance());
+    }
+
+    private static void writeOpen(File file, long generation, String number, long balance) throws Exception {
+        Journal journal = new Journal(file);
+        journal.open(generation, 0, new HashMap<>());
+        journal.append(new Journal.Record().open(account(number, balance)));
+        journal.close();
+    }
+
+    private static Account account(String number, long balance) {
+        return new Account(number, "holder", "", "1234", balance, Account.AccountType.SAVINGS);
+    }
+}
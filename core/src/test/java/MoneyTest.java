@@ -0,0 +1,59 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Which amounts Money.parse takes, and that format() gives back text it takes.
+ */
+class MoneyTest {
+    @Test
+    void parsesPlainAndGroupedAmounts() {
+        assertEquals(123400, Money.parse("1234"));
+        assertEquals(123450, Money.parse("1,234.5"));
+        assertEquals(5, Money.parse("0.05"));
+        assertEquals(50, Money.parse(".5"));
+        assertEquals(100_000_000, Money.parse("1,000,000"));
+        assertEquals(10_000_000, Money.parse("1,00,000"));
+        assertEquals(123_456_789, Money.parse(" 12,34,567.89 "));
+        assertEquals(500, Money.parse("+5"));
+    }
+
+    @Test
+    void rejectsMisplacedSeparators() {
+        for (String s : new String[] { "5,", "1,,2", ",5", "1,2", "1,2345", "1,234,56", "1,2,345", "1,234.", "5.", "1.2.3", "" }) {
+            assertThrows(NumberFormatException.class, () -> Money.parse(s), s);
+        }
+    }
+
+    @Test
+    void rejectsMoreThanTwoDecimals() {
+        assertEquals(1, Money.parse("0.01"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("0.001"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("1.000"));
+    }
+
+    @Test
+    void negativesAreParsedForTheCallerToRefuse() {
+        assertEquals(-150, Money.parse("-1.50"));
+        assertEquals(-100_000, Money.parse("-1,000"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("-"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("--1"));
+    }
+
+    @Test
+    void rejectsAmountsTooLargeForPaise() {
+        assertEquals(Long.MAX_VALUE / 100 / 10 * 100, Money.parse(Long.toString(Long.MAX_VALUE / 100 / 10)));
+        assertThrows(NumberFormatException.class, () -> Money.parse(Long.toString(Long.MAX_VALUE)));
+        assertThrows(NumberFormatException.class, () -> Money.parse("99999999999999999999.99"));
+    }
+
+    @Test
+    void formattedAmountsParseBack() {
+        for (long paise : new long[] { 0, 5, 99, 100, 123_456, -123_456, 100_000_000_00L }) {
+            assertEquals(paise, Money.parse(Money.format(paise)), Money.format(paise));
+        }
+        assertEquals("1,234.56", Money.format(123_456));
+        assertEquals("-0.05", Money.format(-5));
+    }
+}
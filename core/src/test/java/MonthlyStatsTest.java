@@ -0,0 +1,136 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Postings land in the month they were made in, only the newest months
+ * are kept, and the running totals match totals rebuilt from the history.
+ */
+class MonthlyStatsTest {
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void aPostingAtTheTurnOfTheMonthGoesToItsOwnMonth() {
+        long march = startOf(2024, 3);
+        MonthlyStats stats = new MonthlyStats();
+        stats.record(tx(march - 1, Transaction.Type.DEPOSIT, 100));
+        stats.record(tx(march, Transaction.Type.DEPOSIT, 200));
+        // back into February after March was looked up
+        stats.record(tx(march - 86_400_000L, Transaction.Type.WITHDRAW, 30));
+
+        MonthlyStats.Month february = stats.get(202402);
+        assertEquals(100, february.credits);
+        assertEquals(1, february.creditCount);
+        assertEquals(30, february.debits);
+        assertEquals(200, stats.get(202403).credits);
+        assertEquals(1, stats.get(202403).creditCount);
+        assertNull(stats.get(202404));
+    }
+
+    @Test
+    void onlyTheNewestMonthsAreKept() {
+        MonthlyStats stats = new MonthlyStats();
+        // January 2023 to June 2024, with April 2024 left out for now
+        for (int i = 0; i < 18; i++) {
+            if (i == 15) continue;
+            stats.record(tx(startOf(2023 + i / 12, 1 + i % 12) + 1000, Transaction.Type.TRANSFER_IN, i + 1));
+        }
+        assertNull(stats.get(202305), "pushed out by newer months");
+        assertEquals(6, stats.get(202306).transfersIn);
+        // older than everything kept: dropped
+        stats.record(tx(startOf(2023, 1), Transaction.Type.DEPOSIT, 5));
+        assertNull(stats.get(202301));
+        // a missing month within the range is slotted in, pushing out the oldest
+        stats.record(tx(startOf(2024, 4), Transaction.Type.TRANSFER_OUT, 7));
+        assertEquals(7, stats.get(202404).transfersOut);
+        assertNull(stats.get(202306));
+        assertNotNull(stats.get(202307));
+        int kept = 0;
+        for (int month = 202301; month <= 202412; month++) if (stats.get(month) != null) kept++;
+        assertEquals(MonthlyStats.MONTHS_KEPT, kept);
+    }
+
+    @Test
+    void runningTotalsMatchTotalsRebuiltFromTheHistory() {
+        Account account = Account.restore("1001", "holder", "", "1234", 0, Account.AccountType.SAVINGS);
+        Random random = new Random(3);
+        long time = startOf(2024, 1);
+        Transaction.Type[] types = Transaction.Type.values();
+        for (int i = 0; i < 150; i++) {
+            time += random.nextInt(12 * 86_400_000);
+            account.restoreTransaction(tx(time, types[random.nextInt(types.length)], random.nextInt(10_000)));
+        }
+        List<Transaction> history = account.getTransactions();
+        assertEquals(150, history.size(), "all of it still in the history");
+
+        MonthlyStats rebuilt = new MonthlyStats();
+        for (int i = history.size() - 1; i >= 0; i--) rebuilt.record(history.get(i));
+        assertSameMonths(rebuilt, account.getMonthlyStats());
+    }
+
+    @Test
+    void totalsSurviveARestart() {
+        File data = dir.toFile();
+        BankingService service = new BankingService(data);
+        Account a = service.createAccount("holder", "1234");
+        Account b = service.createAccount("other", "1234");
+        service.deposit(a, 10_000, "");
+        service.withdraw(a, 2_500, "");
+        service.transfer(a, b, 1_000, "");
+        service.transfer(b, a, 400, "");
+        MonthlyStats.Month month = service.getAccount(a.accountNumber).getMonthlyStats().current();
+        assertEquals(10_000, month.credits);
+        assertEquals(2_500, month.debits);
+        assertEquals(1_000, month.transfersOut);
+        assertEquals(400, month.transfersIn);
+        assertEquals(10_400, month.received());
+        service.close();
+
+        BankingService reopened = new BankingService(data);
+        assertSameMonths(month, reopened.getAccount(a.accountNumber).getMonthlyStats().current());
+        reopened.close();
+    }
+
+    private static void assertSameMonths(MonthlyStats expected, MonthlyStats actual) {
+        for (int month = 202401; month <= 202512; month++) {
+            MonthlyStats.Month e = expected.get(month), a = actual.get(month);
+            if (e == null) assertNull(a, String.valueOf(month));
+            else assertSameMonths(e, a);
+        }
+    }
+
+    private static void assertSameMonths(MonthlyStats.Month expected, MonthlyStats.Month actual) {
+        String month = String.valueOf(expected.month);
+        assertNotNull(actual, month);
+        assertEquals(expected.month, actual.month);
+        assertEquals(expected.credits, actual.credits, month);
+        assertEquals(expected.creditCount, actual.creditCount, month);
+        assertEquals(expected.debits, actual.debits, month);
+        assertEquals(expected.debitCount, actual.debitCount, month);
+        assertEquals(expected.transfersIn, actual.transfersIn, month);
+        assertEquals(expected.transferInCount, actual.transferInCount, month);
+        assertEquals(expected.transfersOut, actual.transfersOut, month);
+        assertEquals(expected.transferOutCount, actual.transferOutCount, month);
+    }
+
+    private static long startOf(int year, int month) {
+        return LocalDate.of(year, month, 1).atStartOfDay(ZONE).toInstant().toEpochMilli();
+    }
+
+    private static Transaction tx(long time, Transaction.Type type, long amount) {
+        return new Transaction(time, type, amount, "", "", 0);
+    }
+}
@@ -0,0 +1,96 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Scans of the off-heap index agree with a sorted set of the same entries,
+ * before and after the tail is merged.
+ */
+class OffHeapIndexTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void scansSeeEntriesInKeyThenSlotOrder() throws Exception {
+        File file = new File(dir.toFile(), "index");
+        OffHeapIndex index = new OffHeapIndex(file);
+        TreeSet<long[]> expected = new TreeSet<>((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        Random random = new Random(42);
+        int slot = 0;
+        // few distinct keys, so many share one, and negative ones too
+        for (; slot < 50_000; slot++) add(index, expected, random.nextInt(2000) - 1000, slot);
+        index.build();
+        for (; slot < 51_000; slot++) add(index, expected, random.nextInt(2000) - 1000, slot);
+        assertSameScans(index, expected, random);
+
+        index.merge();
+        assertSameScans(index, expected, random);
+        index.close();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    void aScanStopsWhenTheVisitorSaysSo() throws Exception {
+        OffHeapIndex index = new OffHeapIndex(new File(dir.toFile(), "index"));
+        for (int slot = 0; slot < 10; slot++) index.add(7, slot);
+        index.build();
+        List<Integer> seen = new ArrayList<>();
+        index.scan(7, 7, (key, slot) -> seen.add(slot) && seen.size() < 3);
+        assertEquals(List.of(0, 1, 2), seen);
+        index.close();
+    }
+
+    @Test
+    void addSaysWhenTheTailIsDue() throws Exception {
+        OffHeapIndex index = new OffHeapIndex(new File(dir.toFile(), "index"));
+        index.build();
+        boolean due = false;
+        for (int slot = 0; slot < (1 << 16) && !due; slot++) due = index.add(slot, slot);
+        assertTrue(due);
+        index.close();
+    }
+
+    private static void add(OffHeapIndex index, TreeSet<long[]> expected, long key, int slot) {
+        index.add(key, slot);
+        expected.add(new long[] { key, slot });
+    }
+
+    private static void assertSameScans(OffHeapIndex index, TreeSet<long[]> expected, Random random) {
+        assertEquals(flatten(expected), scan(index, Long.MIN_VALUE, Long.MAX_VALUE));
+        for (int i = 0; i < 50; i++) {
+            long from = random.nextInt(2200) - 1100, to = from + random.nextInt(40);
+            List<Long> want = flatten(expected.subSet(new long[] { from, Long.MIN_VALUE }, true,
+                    new long[] { to, Long.MAX_VALUE }, true));
+            assertEquals(want, scan(index, from, to));
+        }
+    }
+
+    private static List<Long> scan(OffHeapIndex index, long from, long to) {
+        List<Long> seen = new ArrayList<>();
+        index.scan(from, to, (key, slot) -> {
+            seen.add(key);
+            seen.add((long) slot);
+            return true;
+        });
+        return seen;
+    }
+
+    private static List<Long> flatten(Iterable<long[]> entries) {
+        List<Long> flat = new ArrayList<>();
+        for (long[] e : entries) {
+            flat.add(e[0]);
+            flat.add(e[1]);
+        }
+        return flat;
+    }
+}
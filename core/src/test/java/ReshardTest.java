@@ -0,0 +1,80 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A store split across shard files and merged back holds the same
+ * accounts, balances and histories at every shard count, across restarts.
+ */
+class ReshardTest {
+    private static final int ACCOUNTS = 300;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void accountsSurviveReshardingUpAndDown() {
+        File data = dir.toFile();
+        BankingService service = new BankingService(data);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            Account a = service.createAccount("holder " + i, "9" + (100_000_000 + i), "1234", Account.AccountType.SAVINGS);
+            service.deposit(a, 1000 + i, "opening " + i);
+        }
+        for (int i = 0; i < ACCOUNTS; i += 7) {
+            service.transfer(service.getAccount(number(i)), service.getAccount(number(ACCOUNTS - 1 - i)), 100, "move " + i);
+        }
+        Map<String, String> expected = contents(service);
+
+        for (int shards : new int[] { 4, 7, 2, 1, 3 }) {
+            service.reshard(shards);
+            assertEquals(shards, service.getShards());
+            assertEquals(shards == 1 ? 0 : shards, shardFiles(data));
+            assertEquals(expected, contents(service));
+            service.close();
+
+            service = new BankingService(data);
+            assertEquals(shards, service.getShards(), "shard count kept across a restart");
+            assertEquals(expected, contents(service));
+            // a change made after the reshard is kept by the next one
+            Account a = service.getAccount(number(shards));
+            service.deposit(a, 1, "after " + shards);
+            expected = contents(service);
+        }
+        service.close();
+    }
+
+    private static String number(int i) {
+        return String.valueOf(AccountTable.FIRST_NUMBER + i);
+    }
+
+    private static int shardFiles(File data) {
+        String[] names = data.list((d, name) -> name.matches("accounts\\.db\\.\\d+\\.\\d+"));
+        return names == null ? 0 : names.length;
+    }
+
+    // every account as text: header, balance and full history
+    private static Map<String, String> contents(BankingService service) {
+        assertEquals(ACCOUNTS, service.getAccountCount());
+        Map<String, String> contents = new HashMap<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            Account a = service.getAccount(number(i));
+            StringBuilder sb = new StringBuilder()
+                    .append(a.name).append('|').append(a.phoneNumber).append('|').append(a.pin).append('|')
+                    .append(a.accountType).append('|').append(a.getBalance());
+            List<Transaction> history = a.getTransactions();
+            for (Transaction t : history) {
+                sb.append('\n').append(t.time).append(' ').append(t.type).append(' ').append(t.amount).append(' ')
+                        .append(t.counterparty).append(' ').append(t.reason).append(' ').append(t.balance);
+            }
+            contents.put(a.accountNumber, sb.toString());
+        }
+        return contents;
+    }
+}
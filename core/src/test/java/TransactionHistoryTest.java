@@ -0,0 +1,97 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Entries come back from the packed buffer as they went in, whether they
+ * were packed or kept whole, across wrap-arounds and dictionary rebuilds.
+ */
+class TransactionHistoryTest {
+    private static final long NOW = 1_700_000_000_123L;
+
+    @Test
+    void packedEntriesRoundTrip() {
+        TransactionHistory history = new TransactionHistory(50);
+        Deque<Transaction> expected = new ArrayDeque<>();
+        Random random = new Random(7);
+        // many more distinct strings than the history holds, so the dictionary is rebuilt again and again
+        for (int i = 0; i < 5000; i++) {
+            Transaction t = random(random, i);
+            history.push(t);
+            expected.addFirst(t);
+            if (expected.size() > 50) expected.removeLast();
+            if (i % 97 == 0) assertSameEntries(new ArrayList<>(expected), history);
+        }
+        assertSameEntries(new ArrayList<>(expected), history);
+    }
+
+    @Test
+    void aLoadedHistoryIsReadBackNewestFirst() {
+        List<Transaction> stored = new ArrayList<>();
+        Random random = new Random(11);
+        for (int i = 0; i < 300; i++) stored.add(random(random, -i));
+        TransactionHistory history = new TransactionHistory(stored);
+        assertSameEntries(stored.subList(0, TransactionHistory.DEFAULT_CAPACITY), history);
+
+        Transaction newest = new Transaction(NOW + 1000, Transaction.Type.DEPOSIT, 5, "", "top up", 5);
+        history.push(newest);
+        assertEquals(TransactionHistory.DEFAULT_CAPACITY, history.size());
+        assertSameEntry(newest, history.get(0));
+        assertSameEntry(stored.get(0), history.get(1));
+    }
+
+    @Test
+    void entriesThatDoNotPackAreKeptWhole() {
+        TransactionHistory history = new TransactionHistory(4);
+        Transaction first = new Transaction(NOW, Transaction.Type.DEPOSIT, 100, "", "salary", 100);
+        // a legacy line with no time, and one too far from the first to count in seconds
+        Transaction legacy = new Transaction(Long.MIN_VALUE, Transaction.Type.OTHER, 0, "2019 - odd line", "", 0);
+        Transaction far = new Transaction(NOW + 80L * 365 * 86_400_000L, Transaction.Type.WITHDRAW, 1, "", "salary", 99);
+        history.push(first);
+        history.push(legacy);
+        history.push(far);
+        assertSame(far, history.get(0));
+        assertSame(legacy, history.get(1));
+        assertSameEntry(first, history.get(2));
+
+        // a packed entry taking over the slot of one kept whole
+        for (int i = 0; i < 3; i++) history.push(new Transaction(NOW + i, Transaction.Type.DEPOSIT, i, "cash", "", i));
+        assertSameEntry(new Transaction(NOW + 2, Transaction.Type.DEPOSIT, 2, "cash", "", 2), history.get(0));
+        assertSame(far, history.get(3));
+    }
+
+    private static Transaction random(Random random, int i) {
+        Transaction.Type type = Transaction.Type.values()[random.nextInt(Transaction.Type.values().length)];
+        String party;
+        switch (random.nextInt(4)) {
+            case 0: party = ""; break;
+            case 1: party = String.valueOf(AccountTable.FIRST_NUMBER + random.nextInt(100_000)); break;
+            case 2: party = "Savings Account"; break;
+            default: party = "merchant " + random.nextInt(1000); break;
+        }
+        String reason = random.nextBoolean() ? "" : "reason " + random.nextInt(500) + " ₹";
+        return new Transaction(NOW + i * 3_600_000L + random.nextInt(1000), type, random.nextInt(1_000_000),
+                party, reason, random.nextLong());
+    }
+
+    private static void assertSameEntries(List<Transaction> expected, TransactionHistory history) {
+        assertEquals(expected.size(), history.size());
+        for (int i = 0; i < expected.size(); i++) assertSameEntry(expected.get(i), history.get(i));
+    }
+
+    private static void assertSameEntry(Transaction expected, Transaction actual) {
+        assertEquals(expected.time, actual.time);
+        assertEquals(expected.type, actual.type);
+        assertEquals(expected.amount, actual.amount);
+        assertEquals(expected.counterparty, actual.counterparty);
+        assertEquals(expected.reason, actual.reason);
+        assertEquals(expected.balance, actual.balance);
+    }
+}